@@ -14,14 +14,13 @@ import android.graphics.BitmapFactory;
 import android.support.v4.util.LruCache;
 import android.util.Log;
 
-import com.instagram.igdiskcache.EditorOutputStream;
+import com.instagram.igdiskcache.CacheBudgetManager;
 import com.instagram.igdiskcache.IgDiskCache;
 import com.instagram.igdiskcache.OptionalStream;
 import com.instagram.igdiskcache.SnapshotInputStream;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileDescriptor;
-import java.io.IOException;
 
 /**
  * Bitmap cache for saving Bitmap in memory and on disk.
@@ -32,13 +31,25 @@ public class BitmapCache {
   private static final int DEFAULT_MEM_CACHE_CAP = 10;
   private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 100; // 100MB
   private static final int DEFAULT_DISK_CACHE_SIZE_PERCENT = 10; // 10% of free disk space
+  private static final int WRITE_BEHIND_QUEUE_SIZE = 1024 * 1024 * 4; // 4MB
+  private static final int WRITE_BEHIND_WORKER_COUNT = 2;
 
+  private CacheBudgetManager mBudgetManager;
   private Context mContext;
   private IgDiskCache mDiskCache;
   private LruCache<String, Bitmap> mMemoryCache;
 
   public BitmapCache(Context context) {
+    this(context, null);
+  }
+
+  /**
+   * @param budgetManager budget manager the disk cache shares its disk budget with, or null to
+   * give the disk cache a fixed limit.
+   */
+  public BitmapCache(Context context, CacheBudgetManager budgetManager) {
     mContext = context;
+    mBudgetManager = budgetManager;
     mMemoryCache = new LruCache<>(DEFAULT_MEM_CACHE_CAP);
   }
 
@@ -51,18 +62,14 @@ public class BitmapCache {
       return;
     }
     mMemoryCache.put(key, bitmap);
-    if (!getDiskCache().has(key)) {
-      OptionalStream<EditorOutputStream> output = getDiskCache().edit(key);
-      if (output.isPresent()) {
-        try {
-          bitmap.compress(Bitmap.CompressFormat.JPEG, 70, output.get());
-          output.get().commit();
-        } catch (Exception e) {
-          Log.e(TAG, "addBitmapToCache - " + e);
-        } finally {
-          output.get().abortUnlessCommitted();
-        }
-      }
+    if (getDiskCache().has(key)) {
+      return;
+    }
+    // The bytes are written to disk by the cache workers, the caller does not wait for the I/O.
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    if (!bitmap.compress(Bitmap.CompressFormat.JPEG, 70, output) ||
+        !getDiskCache().put(key, output.toByteArray())) {
+      Log.w(TAG, "addBitmapToCache - bitmap not cached on disk: " + key);
     }
   }
 
@@ -81,10 +88,7 @@ public class BitmapCache {
     OptionalStream<SnapshotInputStream> input = getDiskCache().get(key);
     if (input.isPresent()) {
       try {
-        FileDescriptor fd = input.get().getFD();
-        bitmap = BitmapFactory.decodeFileDescriptor(fd);
-      } catch (IOException e) {
-        Log.e(TAG, "getBitmapFromDiskCache - " + e);
+        bitmap = BitmapFactory.decodeStream(input.get());
       } finally {
         Utils.closeQuietly(input.get());
       }
@@ -117,6 +121,11 @@ public class BitmapCache {
               DEFAULT_DISK_CACHE_SIZE_PERCENT / 100,
               DEFAULT_DISK_CACHE_SIZE)
       );
+      mDiskCache.enableWriteBehind(WRITE_BEHIND_QUEUE_SIZE, WRITE_BEHIND_WORKER_COUNT, false);
+      if (mBudgetManager != null) {
+        // The budget manager replaces the size limit set above with its share of the budget.
+        mBudgetManager.register(mDiskCache);
+      }
     }
     return mDiskCache;
   }
@@ -16,14 +16,13 @@ import android.os.AsyncTask;
 import android.util.Log;
 import android.widget.ImageView;
 
+import com.instagram.igdiskcache.CacheBudgetManager;
 import com.instagram.igdiskcache.EditorOutputStream;
 import com.instagram.igdiskcache.IgDiskCache;
 import com.instagram.igdiskcache.OptionalStream;
 import com.instagram.igdiskcache.SnapshotInputStream;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
@@ -46,9 +45,11 @@ public class ImageLoader {
   private static final String DOWNLOAD_CACHE_DIR = "http";
   private static final int IO_BUFFER_SIZE = 8 * 1024;
   private static final int MAX_THREAD_POOL_SIZE = 2;
+  private static final long DISK_CACHE_BUDGET = 1024 * 1024 * 130; // 130MB shared by both caches
   private static final Object DECODE_LOCK = new Object();
 
   private BitmapCache mBitmapCache;
+  private CacheBudgetManager mBudgetManager;
   private Context mContext;
   private IgDiskCache mDownloadCache;
   private Resources mResources;
@@ -85,8 +86,9 @@ public class ImageLoader {
         60L,
         TimeUnit.SECONDS,
         new LinkedBlockingQueue<Runnable>());
+    mBudgetManager = new CacheBudgetManager(DISK_CACHE_BUDGET);
     if (enableBitmapCache) {
-      mBitmapCache = new BitmapCache(context);
+      mBitmapCache = new BitmapCache(context, mBudgetManager);
     }
   }
 
@@ -206,16 +208,13 @@ public class ImageLoader {
     Bitmap bitmap = null;
     if (input.isPresent()) {
       try {
-        FileDescriptor fileDescriptor = input.get().getFD();
-        if (fileDescriptor != null) {
-          synchronized (DECODE_LOCK) {
-            Bitmap tmp = BitmapFactory.decodeFileDescriptor(fileDescriptor);
+        synchronized (DECODE_LOCK) {
+          Bitmap tmp = BitmapFactory.decodeStream(input.get());
+          if (tmp != null) {
             bitmap = Bitmap.createScaledBitmap(tmp, width, height, false);
             tmp.recycle();
           }
         }
-      } catch (IOException e) {
-        Log.e(TAG, "loadBitmap - " + e);
       } finally {
         Utils.closeQuietly(input.get());
       }
@@ -227,23 +226,24 @@ public class ImageLoader {
     // lazy initialization of IgDiskCache to avoid calling it from the main UI thread.
     if (mDownloadCache == null) {
       mDownloadCache = new IgDiskCache(Utils.getCacheDirectory(mContext, DOWNLOAD_CACHE_DIR));
+      // The budget manager sets the size limit of the cache.
+      mBudgetManager.register(mDownloadCache);
     }
     return mDownloadCache;
   }
 
   private static boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
     HttpURLConnection urlConnection = null;
-    BufferedOutputStream out = null;
     BufferedInputStream in = null;
     try {
       final URL url = new URL(urlString);
       urlConnection = (HttpURLConnection) url.openConnection();
       in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-      out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
 
+      // EditorOutputStream buffers its writes, no need for a BufferedOutputStream.
       int b;
       while ((b = in.read()) != -1) {
-        out.write(b);
+        outputStream.write(b);
       }
       return true;
     } catch (final IOException e) {
@@ -252,7 +252,6 @@ public class ImageLoader {
       if (urlConnection != null) {
         urlConnection.disconnect();
       }
-      Utils.closeQuietly(out);
       Utils.closeQuietly(in);
     }
     return false;
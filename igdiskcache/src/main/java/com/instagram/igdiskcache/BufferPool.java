@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+
+package com.instagram.igdiskcache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded pool of the direct buffers used for file I/O. Direct buffers are expensive to allocate
+ * and are only freed by the garbage collector, so the released buffers are kept for the next
+ * editor or reader, up to a fixed number of buffers.
+ */
+/* package */ final class BufferPool {
+  /* package */ static final int BUFFER_SIZE = 16 * 1024;
+
+  private final int mMaxPooledBuffers;
+  // Guarded by this
+  private final ArrayDeque<ByteBuffer> mBuffers = new ArrayDeque<>();
+
+  /* package */ BufferPool(int maxPooledBuffers) {
+    mMaxPooledBuffers = maxPooledBuffers;
+  }
+
+  /**
+   * Get a cleared buffer of {@link #BUFFER_SIZE} bytes, from the pool if one is available.
+   */
+  /* package */ ByteBuffer acquire() {
+    ByteBuffer buffer;
+    synchronized (this) {
+      buffer = mBuffers.poll();
+    }
+    return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+  }
+
+  /**
+   * Return a buffer to the pool. The buffer must not be used by the caller anymore.
+   */
+  /* package */ void release(ByteBuffer buffer) {
+    buffer.clear();
+    synchronized (this) {
+      if (mBuffers.size() < mMaxPooledBuffers) {
+        mBuffers.push(buffer);
+      }
+    }
+  }
+}
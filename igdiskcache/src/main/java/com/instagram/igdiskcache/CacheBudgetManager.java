@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+
+package com.instagram.igdiskcache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares a global disk budget between several {@link IgDiskCache} instances. Instead of giving
+ * every cache a fixed limit, the budget is periodically divided between the registered caches
+ * according to how much they recently benefited from their space, so idle caches give space back
+ * to the busy ones.
+ *
+ * <p> Every cache is guaranteed a minimum share of the budget. The rest of the budget goes to the
+ * caches where it is expected to turn the most reads into hits: the manager enables the hit rate
+ * estimation of the caches it manages (see {@link IgDiskCache#getEstimatedHitRateCurve()}), and
+ * repeatedly gives space to the cache with the highest marginal gain, the extra hits per byte it
+ * would get from growing to the next size on its curve, weighted by its recent number of reads.
+ * Space that no cache is expected to turn into hits is split evenly. The new limits are applied
+ * through {@link IgDiskCache#setMaxSizeInBytes}, which trims the caches that have to shrink.
+ * <pre>
+ *   {@code
+ *      CacheBudgetManager budget = new CacheBudgetManager(150 * 1024 * 1024);
+ *      budget.register(imageCache);
+ *      budget.register(videoCache);
+ *   }
+ * </pre>
+ */
+public final class CacheBudgetManager {
+  private static final int REBALANCE_INTERVAL = 100; // rebalance every 100 commits
+  private static final float MIN_SHARE_FRACTION = 0.25f; // 25% of an even split
+  private static final float READ_RATE_SMOOTHING = 0.5f;
+
+  private final long mTotalBudgetInBytes;
+  // Guarded by this
+  private final List<Registration> mRegistrations = new ArrayList<>();
+  private final AtomicInteger mCommitsSinceRebalance = new AtomicInteger();
+
+  private static final class Registration {
+    final IgDiskCache mCache;
+    int mLastHitCount;
+    int mLastMissCount;
+    // Smoothed number of reads between two rebalances
+    double mReadRate;
+
+    Registration(IgDiskCache cache) {
+      mCache = cache;
+      mLastHitCount = cache.getHitCount();
+      mLastMissCount = cache.getMissCount();
+    }
+  }
+
+  /**
+   * @param totalBudgetInBytes the disk budget shared by all the registered caches (in bytes).
+   */
+  public CacheBudgetManager(long totalBudgetInBytes) {
+    mTotalBudgetInBytes = totalBudgetInBytes;
+  }
+
+  /**
+   * Get the disk budget shared by all the registered caches (in bytes).
+   */
+  public long getTotalBudgetInBytes() {
+    return mTotalBudgetInBytes;
+  }
+
+  /**
+   * Register a cache with the budget manager, and enable its hit rate estimation. The budget is
+   * immediately re-divided between all the registered caches. The manager then sets the size limit
+   * of the cache, it should not be sized by other means such as
+   * {@link IgDiskCache#enableFreeSpaceTracking}.
+   * @throws IllegalStateException if the cache is already registered with a budget manager.
+   */
+  public void register(IgDiskCache cache) {
+    cache.setBudgetManager(this);
+    cache.setHitRateEstimationEnabled(true);
+    synchronized (this) {
+      mRegistrations.add(new Registration(cache));
+    }
+    rebalance();
+  }
+
+  /**
+   * Unregister a cache from the budget manager. The cache keeps its current limit, and its hit rate
+   * estimation.
+   */
+  public void unregister(IgDiskCache cache) {
+    boolean removed = false;
+    synchronized (this) {
+      for (int i = 0; i < mRegistrations.size() && !removed; i++) {
+        if (mRegistrations.get(i).mCache == cache) {
+          mRegistrations.remove(i);
+          removed = true;
+        }
+      }
+    }
+    if (removed) {
+      cache.setBudgetManager(null);
+      rebalance();
+    }
+  }
+
+  /**
+   * Re-divide the budget between the registered caches according to their estimated marginal
+   * gain, and trim the caches whose share shrinks.
+   */
+  public void rebalance() {
+    mCommitsSinceRebalance.set(0);
+    synchronized (this) {
+      // Applied under the lock, so that the shares of a concurrent rebalance don't get mixed with
+      // these. Setting a limit only schedules the trim, it doesn't wait for it.
+      long[] shares = computeSharesLocked();
+      for (int i = 0; i < mRegistrations.size(); i++) {
+        mRegistrations.get(i).mCache.setMaxSizeInBytes(shares[i]);
+      }
+    }
+  }
+
+  private long[] computeSharesLocked() {
+    int count = mRegistrations.size();
+    long[] shares = new long[count];
+    if (count == 0) {
+      return shares;
+    }
+    HitRateCurve[] curves = new HitRateCurve[count];
+    for (int i = 0; i < count; i++) {
+      Registration registration = mRegistrations.get(i);
+      int hitCount = registration.mCache.getHitCount();
+      int missCount = registration.mCache.getMissCount();
+      int reads = hitCount - registration.mLastHitCount + missCount - registration.mLastMissCount;
+      registration.mLastHitCount = hitCount;
+      registration.mLastMissCount = missCount;
+      registration.mReadRate = READ_RATE_SMOOTHING * registration.mReadRate +
+              (1 - READ_RATE_SMOOTHING) * reads;
+      curves[i] = registration.mCache.getEstimatedHitRateCurve();
+    }
+    long minShare = (long) (mTotalBudgetInBytes / count * MIN_SHARE_FRACTION);
+    long remainingBudget = mTotalBudgetInBytes - minShare * count;
+    for (int i = 0; i < count; i++) {
+      shares[i] = minShare;
+    }
+    // Greedy allocation, looking ahead to the next size where the hit rate grows: the curves are
+    // step functions, growing a cache by a few bytes usually gains nothing on its own.
+    while (remainingBudget > 0) {
+      int best = -1;
+      double bestGain = 0;
+      long bestStep = 0;
+      for (int i = 0; i < count; i++) {
+        HitRateCurve curve = curves[i];
+        double readRate = mRegistrations.get(i).mReadRate;
+        if (curve == null || readRate <= 0) {
+          continue;
+        }
+        long[] sizes = curve.getSizesInBytes();
+        float[] hitRates = curve.getHitRates();
+        float hitRate = curve.getHitRate(shares[i]);
+        for (int j = 0; j < sizes.length; j++) {
+          if (sizes[j] > shares[i] && hitRates[j] > hitRate) {
+            long step = sizes[j] - shares[i];
+            double gain = readRate * (hitRates[j] - hitRate) / step;
+            if (gain > bestGain) {
+              best = i;
+              bestGain = gain;
+              bestStep = step;
+            }
+          }
+        }
+      }
+      if (best < 0) {
+        break;
+      }
+      long step = Math.min(bestStep, remainingBudget);
+      shares[best] += step;
+      remainingBudget -= step;
+    }
+    for (int i = 0; i < count; i++) {
+      shares[i] += remainingBudget / count;
+    }
+    return shares;
+  }
+
+  /**
+   * Called by the registered caches after each commit.
+   * @return true if the budget should be re-divided.
+   */
+  /* package */ boolean onCommit() {
+    return mCommitsSinceRebalance.incrementAndGet() >= REBALANCE_INTERVAL;
+  }
+}
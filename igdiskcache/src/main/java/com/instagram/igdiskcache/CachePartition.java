@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+
+package com.instagram.igdiskcache;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A named partition inside an {@link IgDiskCache}. Each partition has its own size and count
+ * quota and its own LRU list, while sharing the journal, the directory and the maintenance
+ * executor of the cache it belongs to.
+ *
+ * <p> Entries are assigned to a partition through their key: use {@link #key(String)} to turn a
+ * partition-local key into a cache key, and pass that key to any {@link IgDiskCache} method.
+ * <pre>
+ *   {@code
+ *      CachePartition stories = cache.addPartition("stories", 10 * 1024 * 1024, 200);
+ *      OptionalStream<EditorOutputStream> output = cache.edit(stories.key(mediaId));
+ *   }
+ * </pre>
+ *
+ * <p> Quotas are guarantees rather than hard limits: a busy partition may borrow the quota left
+ * unused by the others. Once the cache as a whole goes over its limits, entries are evicted first
+ * from the partitions that are over their quota, then from entries outside of any partition, and
+ * only then from the global LRU list.
+ */
+public final class CachePartition {
+  /* package */ static final char KEY_SEPARATOR = '.';
+
+  private final String mName;
+  // Guarded by the disk cache lock of the owning IgDiskCache
+  private final LinkedHashMap<String, Entry> mLruEntries;
+  private final AtomicLong mSizeInBytes = new AtomicLong();
+  private volatile long mMaxSizeInBytes;
+  private volatile int mMaxCount;
+
+  /* package */ CachePartition(String name, long maxSizeInBytes, int maxCount) {
+    mName = name;
+    mMaxSizeInBytes = maxSizeInBytes;
+    mMaxCount = maxCount;
+    mLruEntries = new LinkedHashMap<>(0, 0.75f, true);
+  }
+
+  /**
+   * Get the name of the partition.
+   */
+  public String getName() {
+    return mName;
+  }
+
+  /**
+   * Get the cache key of an entry that belongs to this partition.
+   * @param key partition-local key, which must match the regex <strong>[a-z0-9_-]{1,120}</strong>.
+   */
+  public String key(String key) {
+    return mName == null ? key : mName + KEY_SEPARATOR + key;
+  }
+
+  /**
+   * Get the size quota of the partition (in bytes).
+   */
+  public long getMaxSizeInBytes() {
+    return mMaxSizeInBytes;
+  }
+
+  /**
+   * Get the entry count quota of the partition.
+   */
+  public int getMaxCount() {
+    return mMaxCount;
+  }
+
+  /* package */ void setQuota(long maxSizeInBytes, int maxCount) {
+    mMaxSizeInBytes = maxSizeInBytes;
+    mMaxCount = maxCount;
+  }
+
+  /**
+   * Get the partition's current size in bytes.
+   */
+  public long size() {
+    return mSizeInBytes.get();
+  }
+
+  /**
+   * Get the partition's entry count.
+   */
+  public int count() {
+    synchronized (mLruEntries) {
+      return mLruEntries.size();
+    }
+  }
+
+  /* package */ boolean isOverQuota() {
+    return mSizeInBytes.get() > mMaxSizeInBytes || count() > mMaxCount;
+  }
+
+  /**
+   * How far the partition is over its quota, as a fraction of the quota. Used to pick the
+   * partition to evict from first.
+   */
+  /* package */ double getQuotaOverage() {
+    double sizeRatio = mMaxSizeInBytes > 0
+            ? (double) mSizeInBytes.get() / mMaxSizeInBytes
+            : Double.MAX_VALUE;
+    double countRatio = mMaxCount > 0 ? (double) count() / mMaxCount : Double.MAX_VALUE;
+    return Math.max(sizeRatio, countRatio);
+  }
+
+  /* package */ void addSize(long delta) {
+    mSizeInBytes.getAndAdd(delta);
+  }
+
+  /* package */ void touch(String key) {
+    synchronized (mLruEntries) {
+      mLruEntries.get(key);
+    }
+  }
+
+  /* package */ void put(Entry entry) {
+    synchronized (mLruEntries) {
+      mLruEntries.put(entry.getKey(), entry);
+    }
+  }
+
+  /* package */ void remove(String key) {
+    synchronized (mLruEntries) {
+      mLruEntries.remove(key);
+    }
+  }
+
+  /**
+   * Get the least recently used entry of the partition that is not under edit, or null if there
+   * is none.
+   */
+  /* package */ Entry eldestNotUnderEdit() {
+    synchronized (mLruEntries) {
+      for (Entry entry : mLruEntries.values()) {
+        if (entry.getCurrentEditorStream() == null) {
+          return entry;
+        }
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+
+package com.instagram.igdiskcache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed storage for the chunks of large entries, and for the deduplicated entries.
+ * Each chunk is a file named "[SHA-1 of the chunk].chunk", so identical chunks of different
+ * entries (or of different versions of one entry) are stored once. Chunks are reference counted:
+ * entries holding the chunk, editors that wrote it and snapshots reading it all keep a reference,
+ * and the file is deleted when the last one is released. The reference counts of the entries are
+ * rebuilt from the journal, which lists the chunks of each entry.
+ * <p> The size of the store counts each stored chunk once, no matter how many entries share it.
+ */
+/* package */ final class ChunkStore {
+  /* package */ static final String CHUNK_FILE_EXTENSION = ".chunk";
+
+  private final File mDirectory;
+  private final FilePins mFilePins;
+  // Guarded by this
+  private final Map<String, Chunk> mChunks = new HashMap<>();
+  // Written under this
+  private volatile long mSizeInBytes;
+
+  private static final class Chunk {
+    int mReferenceCount;
+    long mSizeInBytes;
+  }
+
+  /* package */ ChunkStore(File directory, FilePins filePins) {
+    mDirectory = directory;
+    mFilePins = filePins;
+  }
+
+  /* package */ File getChunkFile(String hash) {
+    return new File(mDirectory, hash + CHUNK_FILE_EXTENSION);
+  }
+
+  /**
+   * Get the size (in bytes) of the chunks currently stored.
+   */
+  /* package */ long getSizeInBytes() {
+    return mSizeInBytes;
+  }
+
+  /**
+   * Rebuild the reference counts from the entries restored from the journal, and delete the chunk
+   * files that no entry holds.
+   */
+  /* package */ synchronized void restore(Collection<Entry> entries) {
+    for (Entry entry : entries) {
+      String[] hashes = entry.getChunkHashes();
+      if (hashes != null) {
+        retain(hashes);
+      }
+    }
+    File[] files = mDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.endsWith(CHUNK_FILE_EXTENSION)) {
+          Chunk chunk =
+                  mChunks.get(name.substring(0, name.length() - CHUNK_FILE_EXTENSION.length()));
+          if (chunk == null) {
+            file.delete(); // No need to handle the fail case. Ignore the return.
+          } else {
+            chunk.mSizeInBytes = file.length();
+            mSizeInBytes += chunk.mSizeInBytes;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Store a chunk that was written to a temporary file, and take a reference on it. The temporary
+   * file is renamed, or deleted if an identical chunk is already stored.
+   */
+  /* package */ synchronized void store(File file, String hash) throws IOException {
+    Chunk chunk = mChunks.get(hash);
+    if (chunk != null) {
+      file.delete(); // No need to handle the fail case. Ignore the return.
+      chunk.mReferenceCount++;
+      return;
+    }
+    File chunkFile = getChunkFile(hash);
+    // A mapped view might still defer the deletion of a released copy of the chunk.
+    mFilePins.cancelDeletion(chunkFile);
+    long sizeInBytes = file.length();
+    if (!file.renameTo(chunkFile)) {
+      throw new IOException("Failed to store chunk " + hash);
+    }
+    chunk = new Chunk();
+    chunk.mReferenceCount = 1;
+    chunk.mSizeInBytes = sizeInBytes;
+    mChunks.put(hash, chunk);
+    mSizeInBytes += sizeInBytes;
+  }
+
+  /* package */ synchronized void retain(String[] hashes) {
+    for (String hash : hashes) {
+      Chunk chunk = mChunks.get(hash);
+      if (chunk == null) {
+        chunk = new Chunk();
+        mChunks.put(hash, chunk);
+      }
+      chunk.mReferenceCount++;
+    }
+  }
+
+  /**
+   * Release a reference on each of the chunks, deleting the chunks that are not referenced
+   * anymore. Does nothing if hashes is null.
+   */
+  /* package */ synchronized void release(String... hashes) {
+    if (hashes == null) {
+      return;
+    }
+    for (String hash : hashes) {
+      Chunk chunk = mChunks.get(hash);
+      if (chunk != null && --chunk.mReferenceCount <= 0) {
+        mChunks.remove(hash);
+        mSizeInBytes -= chunk.mSizeInBytes;
+        mFilePins.delete(getChunkFile(hash)); // No need to handle the fail case.
+      }
+    }
+  }
+}
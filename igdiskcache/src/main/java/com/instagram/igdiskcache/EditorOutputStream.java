@@ -9,47 +9,312 @@
 
 package com.instagram.igdiskcache;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
- * OutputStream used for writing data into the disk cache Entry. If you need to use
- * BufferedOutputStream, you might want to wrap the EditorOutputStream up with the
- * BufferedOutputStream yourself.
+ * OutputStream used for writing data into the disk cache Entry. Writes are buffered: small writes
+ * are coalesced in memory, and the file is written through a {@link FileChannel} from a pooled
+ * direct buffer, so there is no need to wrap the EditorOutputStream in a BufferedOutputStream.
  * <p> After edit, instead of {@link #close()} the EditorOutputStream, the OutputStream need to
  * {@link #commit()} to write the change to cache, or {@link #abort()} to discard the change.
  * <p> All EditorOutputStream should be committed or aborted after use to prevent resource leak.
+ * <p> The EditorOutputStream is a plain OutputStream, not a FileOutputStream: the data may stay in
+ * memory, be compressed or be split in chunks before it is stored, so there is no file channel or
+ * file descriptor to write to directly.
+ * <p> When packed storage is enabled (see {@link IgDiskCache#setMaxPackedEntrySizeInBytes}), the
+ * data is kept in memory until it outgrows the packed entry size limit, and small entries are
+ * appended to a shared segment file on commit instead of getting a file of their own.
+ * <p> When chunked storage is enabled (see {@link IgDiskCache#setChunkSizeInBytes}), entries larger
+ * than one chunk are stored as a list of chunks. Each chunk is stored as soon as it is full, so
+ * only the last chunk is left to write on commit.
+ * <p> When deduplication is enabled (see {@link IgDiskCache#setDeduplicationEnabled}), the data
+ * is hashed while it is written, and on commit the entry is stored as a single chunk named by the
+ * hash, shared with the other entries holding the same data.
+ * <p> When compression is enabled (see {@link IgDiskCache#setCompressionEnabled}), the first
+ * bytes of the entry are kept as a sample to decide whether the entry compresses well. If it does,
+ * the data is deflated before it gets stored, otherwise it is stored as written.
+ * <p> A CRC32 of the stored data is computed as it is written, and published with the entry so
+ * that readers can detect corrupted data.
+ * <p> When the cache stores several values per entry (see {@link IgDiskCache#setValueCount}),
+ * the data written first is the first value, and {@link #nextValue()} moves on to the next one.
  */
-public final class EditorOutputStream extends FileOutputStream {
+public final class EditorOutputStream extends OutputStream {
+  private static final int INITIAL_BUFFER_SIZE = 256;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  private static final int COMPRESSION_SAMPLE_SIZE = 4096;
+  // Only compress the entries whose sample shrinks to less than this ratio of its size.
+  private static final float MAX_COMPRESSION_RATIO = 0.9f;
+  private static final int PENDING_BUFFER_SIZE = 512;
+
   private IgDiskCache mCache;
   private Entry mEntry;
+  private final File mDirtyFile;
+  // Doesn't hold the Entry while writing, see IgDiskCache#editConcurrently
+  private final boolean mIsConcurrent;
   private boolean mHasErrors;
   private boolean mIsClosed;
+  private final int mMaxPackedSizeInBytes;
+  private byte[] mBuffer;
+  private int mBufferCount;
+  private FileChannel mFileChannel;
+  // Direct buffer from the cache's pool, holding the data not yet written to the file
+  private ByteBuffer mFileBuffer;
+  // Small writes waiting to go through compression, checksum and hashing in one batch
+  private final byte[] mPendingBytes = new byte[PENDING_BUFFER_SIZE];
+  private int mPendingCount;
+  private long mFileBytes;
+  private long mLengthInBytes;
+  private final int mChunkSizeInBytes;
+  private final boolean mIsDeduplicating;
+  private final MessageDigest mChunkDigest;
+  private final List<String> mChunkHashes = new ArrayList<>();
+  private byte[] mSample;
+  private int mSampleCount;
+  private Deflater mDeflater;
+  private boolean mIsCompressed;
+  private byte[] mDeflaterOutput;
+  private long mWrittenBytes;
+  private final CRC32 mChecksum = new CRC32();
+  // Null if the entry holds a single value
+  private final long[] mValueLengths;
+  private int mValueIndex;
+  private long mValueStart;
+  private final byte[] mMetadata;
+  // The data is in the dirty file, adopted or transferred, rather than written to the stream
+  private boolean mIsTransferred;
+  // Part of a Transaction: commit() only finishes the data, the Transaction publishes it
+  private boolean mIsInTransaction;
+  private boolean mIsStaged;
 
-  /* package */ EditorOutputStream(Entry entry, IgDiskCache cache) throws FileNotFoundException {
-    super(entry.getDirtyFile());
+  /* package */ EditorOutputStream(
+          Entry entry,
+          File dirtyFile,
+          boolean isConcurrent,
+          IgDiskCache cache,
+          int maxPackedSizeInBytes,
+          int chunkSizeInBytes,
+          boolean isDeduplicating,
+          boolean isCompressing,
+          int valueCount,
+          byte[] metadata) throws FileNotFoundException {
     mCache = cache;
     mEntry = entry;
+    mDirtyFile = dirtyFile;
+    mIsConcurrent = isConcurrent;
     mHasErrors = false;
+    mMaxPackedSizeInBytes = maxPackedSizeInBytes;
+    mChunkDigest = chunkSizeInBytes > 0 || isDeduplicating ? createChunkDigest() : null;
+    mIsDeduplicating = isDeduplicating && mChunkDigest != null;
+    if (mChunkDigest == null) {
+      mChunkSizeInBytes = 0;
+    } else {
+      // Without chunked storage, a deduplicated entry is a single chunk.
+      mChunkSizeInBytes = chunkSizeInBytes > 0 ? chunkSizeInBytes : Integer.MAX_VALUE;
+    }
+    if (maxPackedSizeInBytes > 0) {
+      mBuffer = new byte[Math.min(INITIAL_BUFFER_SIZE, maxPackedSizeInBytes)];
+    } else {
+      mFileChannel = new FileOutputStream(dirtyFile).getChannel();
+    }
+    if (isCompressing) {
+      mSample = new byte[COMPRESSION_SAMPLE_SIZE];
+    }
+    mValueLengths = valueCount > 1 ? new long[valueCount] : null;
+    mMetadata = metadata;
   }
 
   /**
-   * Commit change to disk cache.
+   * End the current value of the entry, the data written next goes to the next value. The
+   * values that are not written to are empty.
+   * @throws IllegalStateException if the current value is the last value of the entry.
+   */
+  public synchronized void nextValue() {
+    checkNotClosedOrEditingConcurrently();
+    if (mValueLengths == null || mValueIndex >= mValueLengths.length - 1) {
+      throw new IllegalStateException("The entry has no value after value " + mValueIndex);
+    }
+    mValueLengths[mValueIndex++] = mWrittenBytes - mValueStart;
+    mValueStart = mWrittenBytes;
+  }
+
+  /**
+   * Commit change to disk cache. If the EditorOutputStream is part of a {@link Transaction}, the
+   * data is finished but only gets published when the Transaction is committed.
    * @return true if the change is successfully committed to disk cache. In case of IOExceptions,
    * the method will return false instead of throwing out the IOExceptions.
    */
   public synchronized boolean commit() {
     checkNotClosedOrEditingConcurrently();
+    writePendingBytes();
+    if (!mHasErrors && !mIsTransferred) {
+      finishCompression();
+    }
+    endDeflater();
     close();
     mIsClosed = true;
-    if (mHasErrors) {
+    if (!mHasErrors && (!mChunkHashes.isEmpty() || mIsDeduplicating) && mFileBytes > 0) {
+      try {
+        storeChunk();
+      } catch (IOException e) {
+        mHasErrors = true;
+      }
+    }
+    if (mHasErrors && mIsConcurrent) {
+      discardConcurrentEdit();
+      return false;
+    } else if (mHasErrors) {
+      mCache.releaseChunks(getChunkHashes());
       mCache.abortEdit(mEntry);
-      mCache.remove(mEntry.getKey()); // Previous entry is stale.
+      if (!mIsInTransaction) {
+        // Previous entry is stale. A Transaction keeps the previous entries of all its edits.
+        mCache.removeEntry(mEntry.getKey());
+      }
       return false;
-    } else {
-      mCache.commitEdit(mEntry);
+    } else if (mIsInTransaction) {
+      mIsStaged = true;
       return true;
+    } else if (mIsConcurrent) {
+      Entry entry = mCache.takeEntryForConcurrentCommit(mEntry.getKey(), this);
+      if (entry == null) {
+        // Another edit of the Entry is in progress, and replaces this one when it is committed.
+        discardConcurrentEdit();
+        return false;
+      }
+      mEntry = entry;
+    }
+    return publish();
+  }
+
+  /**
+   * Publish the finished data to the cache.
+   * @return true if the edit got published.
+   */
+  private boolean publish() {
+    if (mIsTransferred) {
+      return mCache.commitEdit(
+              mEntry,
+              mDirtyFile,
+              mLengthInBytes,
+              Entry.NOT_COMPRESSED,
+              Entry.NO_CHECKSUM,
+              null,
+              mMetadata);
+    } else if (!mChunkHashes.isEmpty()) {
+      return mCache.commitChunkedEdit(
+              mEntry,
+              mLengthInBytes,
+              mChunkSizeInBytes,
+              getChunkHashes(),
+              getUncompressedLengthInBytes(),
+              mChecksum.getValue(),
+              getValueLengths(),
+              mMetadata);
+    } else if (mBuffer != null) {
+      return mCache.commitPackedEdit(
+              mEntry,
+              mBuffer,
+              mBufferCount,
+              getUncompressedLengthInBytes(),
+              mChecksum.getValue(),
+              getValueLengths(),
+              mMetadata);
+    } else {
+      return mCache.commitEdit(
+              mEntry,
+              mDirtyFile,
+              mLengthInBytes,
+              getUncompressedLengthInBytes(),
+              mChecksum.getValue(),
+              getValueLengths(),
+              mMetadata);
+    }
+  }
+
+  /**
+   * Store the finished data of a Transaction edit where it gets published from, and add the edit
+   * to the staged edits of the Transaction. Nothing is published yet.
+   * @return false if the data can't be published.
+   */
+  /* package */ synchronized boolean prepareToPublish(List<IgDiskCache.StagedEdit> stagedEdits) {
+    if (mIsTransferred) {
+      return mCache.stageEdit(
+              mEntry,
+              mDirtyFile,
+              mLengthInBytes,
+              Entry.NOT_COMPRESSED,
+              Entry.NO_CHECKSUM,
+              null,
+              mMetadata,
+              stagedEdits);
+    } else if (!mChunkHashes.isEmpty()) {
+      return mCache.stageChunkedEdit(
+              mEntry,
+              mLengthInBytes,
+              mChunkSizeInBytes,
+              getChunkHashes(),
+              getUncompressedLengthInBytes(),
+              mChecksum.getValue(),
+              getValueLengths(),
+              mMetadata,
+              stagedEdits);
+    } else if (mBuffer != null) {
+      return mCache.stagePackedEdit(
+              mEntry,
+              mBuffer,
+              mBufferCount,
+              getUncompressedLengthInBytes(),
+              mChecksum.getValue(),
+              getValueLengths(),
+              mMetadata,
+              stagedEdits);
+    } else {
+      return mCache.stageEdit(
+              mEntry,
+              mDirtyFile,
+              mLengthInBytes,
+              getUncompressedLengthInBytes(),
+              mChecksum.getValue(),
+              getValueLengths(),
+              mMetadata,
+              stagedEdits);
+    }
+  }
+
+  /* package */ synchronized void setInTransaction() {
+    mIsInTransaction = true;
+  }
+
+  /**
+   * Commit the EditorOutputStream of a Transaction unless it is already committed or aborted.
+   * @return true if the data is finished and waiting to be published.
+   */
+  /* package */ synchronized boolean stageUnlessClosed() {
+    return mIsClosed ? mIsStaged : commit();
+  }
+
+  /**
+   * Discard the finished data of a Transaction that doesn't get published.
+   */
+  /* package */ synchronized void discardIfStaged() {
+    if (mIsStaged) {
+      mIsStaged = false;
+      mCache.releaseChunks(getChunkHashes());
+      mCache.abortEdit(mEntry);
     }
   }
 
@@ -58,11 +323,28 @@ public final class EditorOutputStream extends FileOutputStream {
    */
   public synchronized void abort() {
     checkNotClosedOrEditingConcurrently();
+    mPendingCount = 0;
+    endDeflater();
     close();
     mIsClosed = true;
+    if (mIsConcurrent) {
+      discardConcurrentEdit();
+      return;
+    }
+    mCache.releaseChunks(getChunkHashes());
     mCache.abortEdit(mEntry);
   }
 
+  /**
+   * Drop the data of a concurrent edit, which never held the Entry.
+   */
+  private void discardConcurrentEdit() {
+    mCache.releaseChunks(getChunkHashes());
+    if (mDirtyFile.exists()) {
+      mDirtyFile.delete(); // No need to handle the fail case. Ignore the return.
+    }
+  }
+
   /**
    * Abort the change if it is not already committed. This is commonly used in the {@code finally}
    * block of error try-cache to make sure the EditorOutputStream is properly closed.
@@ -73,19 +355,163 @@ public final class EditorOutputStream extends FileOutputStream {
     }
   }
 
+  @Override
+  public void write(int oneByte) {
+    if (mPendingCount == mPendingBytes.length) {
+      writePendingBytes();
+    }
+    mPendingBytes[mPendingCount++] = (byte) oneByte;
+    mWrittenBytes++;
+  }
+
   @Override
   public void write(byte[] buffer) {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int byteOffset, int byteCount) {
+    if (mPendingCount + byteCount > mPendingBytes.length) {
+      writePendingBytes();
+    }
+    if (byteCount < mPendingBytes.length) {
+      System.arraycopy(buffer, byteOffset, mPendingBytes, mPendingCount, byteCount);
+      mPendingCount += byteCount;
+    } else {
+      writeData(buffer, byteOffset, byteCount);
+    }
+    mWrittenBytes += byteCount;
+  }
+
+  /**
+   * Size the buffer of an entry that is expected to be packed, so that it doesn't grow as it gets
+   * written. The dirty file of a larger entry is not extended up front: without fallocate, that
+   * only costs extra system calls on every edit, and file systems without sparse files fill the
+   * extension with zeros.
+   */
+  /* package */ synchronized void setExpectedBytes(long expectedBytes) {
+    if (mBuffer != null && mBufferCount == 0 && expectedBytes > mBuffer.length
+            && expectedBytes <= mMaxPackedSizeInBytes) {
+      mBuffer = new byte[(int) expectedBytes];
+    }
+  }
+
+  /**
+   * Take the given file as the data of the Entry, by renaming it to the dirty file. Nothing is
+   * copied, and the Entry is stored as a file of its own, without compression or checksum.
+   * @return false if the file can't be renamed, for example because it is on another file system.
+   * @throws IllegalStateException if data was already written to the stream.
+   */
+  /* package */ synchronized boolean adoptFile(File file, long length) {
+    checkNotClosedOrEditingConcurrently();
+    discardDataFile();
+    if (!file.renameTo(mDirtyFile)) {
+      return false;
+    }
+    mIsTransferred = true;
+    mLengthInBytes = length;
+    return true;
+  }
+
+  /**
+   * Transfer length bytes from the source channel to the dirty file with
+   * {@link FileChannel#transferFrom}, which copies in the kernel when the source is a file. Like
+   * with {@link #adoptFile}, the Entry is stored as a file of its own, without compression or
+   * checksum.
+   * @throws IOException if the source ends before length bytes, or if the transfer fails.
+   * @throws IllegalStateException if data was already written to the stream.
+   */
+  /* package */ synchronized void transferFrom(ReadableByteChannel source, long length)
+          throws IOException {
+    checkNotClosedOrEditingConcurrently();
+    discardDataFile();
     try {
-      super.write(buffer);
+      openDirtyFile();
+      long position = 0;
+      while (position < length) {
+        long transferred = mFileChannel.transferFrom(source, position, length - position);
+        if (transferred <= 0) {
+          throw new EOFException("The source ends after " + position + " bytes.");
+        }
+        position += transferred;
+      }
+      mIsTransferred = true;
+      mLengthInBytes = length;
     } catch (IOException e) {
       mHasErrors = true;
+      throw e;
     }
   }
 
-  @Override
-  public void write(byte[] buffer, int byteOffset, int byteCount) {
+  /**
+   * Drop the buffers and the file handle of the stream before the data of the Entry is put in the
+   * dirty file by other means.
+   */
+  private void discardDataFile() {
+    if (mWrittenBytes > 0) {
+      throw new IllegalStateException("Data was already written to the EditorOutputStream");
+    }
+    mBuffer = null;
+    mSample = null;
+    releaseFileBuffer();
+    if (mFileChannel != null) {
+      Journal.closeQuietly(mFileChannel);
+      mFileChannel = null;
+    }
+  }
+
+  private void writePendingBytes() {
+    if (mPendingCount > 0) {
+      int count = mPendingCount;
+      mPendingCount = 0;
+      writeData(mPendingBytes, 0, count);
+    }
+  }
+
+  private void writeData(byte[] buffer, int byteOffset, int byteCount) {
+    if (mSample != null) {
+      int count = Math.min(byteCount, mSample.length - mSampleCount);
+      System.arraycopy(buffer, byteOffset, mSample, mSampleCount, count);
+      mSampleCount += count;
+      byteOffset += count;
+      byteCount -= count;
+      if (mSampleCount < mSample.length) {
+        return;
+      }
+      startCompressionIfUseful();
+    }
+    if (mDeflater != null) {
+      mDeflater.setInput(buffer, byteOffset, byteCount);
+      while (!mDeflater.needsInput()) {
+        writeDeflaterOutput();
+      }
+    } else {
+      writeStored(buffer, byteOffset, byteCount);
+    }
+  }
+
+  /**
+   * Write data as it is stored, that is after compression.
+   */
+  private void writeStored(byte[] buffer, int byteOffset, int byteCount) {
+    mChecksum.update(buffer, byteOffset, byteCount);
+    if (mBuffer != null && mBufferCount + byteCount <= mMaxPackedSizeInBytes) {
+      if (mBufferCount + byteCount > mBuffer.length) {
+        int newSize = Math.max(mBufferCount + byteCount, mBuffer.length * 2);
+        mBuffer = Arrays.copyOf(mBuffer, Math.min(newSize, mMaxPackedSizeInBytes));
+      }
+      System.arraycopy(buffer, byteOffset, mBuffer, mBufferCount, byteCount);
+      mBufferCount += byteCount;
+      return;
+    }
     try {
-      super.write(buffer, byteOffset, byteCount);
+      if (mBuffer != null) {
+        // The entry is too large to be packed, move the buffered data to the dirty file.
+        byte[] buffered = mBuffer;
+        mBuffer = null;
+        writeToFile(buffered, 0, mBufferCount);
+      }
+      writeToFile(buffer, byteOffset, byteCount);
     } catch (IOException e) {
       mHasErrors = true;
     }
@@ -97,28 +523,212 @@ public final class EditorOutputStream extends FileOutputStream {
   @Deprecated
   @Override
   public void close() {
+    writePendingBytes();
     try {
-      super.close();
+      if (mFileChannel != null && mFileChannel.isOpen()) {
+        writeFileBuffer();
+        mFileChannel.close();
+      }
     } catch (IOException e) {
       mHasErrors = true;
+    } finally {
+      releaseFileBuffer();
     }
   }
 
   @Override
   public void flush() {
+    writePendingBytes();
     try {
-      super.flush();
+      if (mFileChannel != null) {
+        writeFileBuffer();
+      }
     } catch (IOException e) {
       mHasErrors = true;
     }
   }
 
+  /**
+   * Decide from the sample whether the entry is worth compressing, and write the sample.
+   */
+  private void startCompressionIfUseful() {
+    byte[] sample = mSample;
+    int sampleCount = mSampleCount;
+    mSample = null;
+    if (isCompressible(sample, sampleCount)) {
+      mDeflater = new Deflater(Deflater.BEST_SPEED);
+      mDeflaterOutput = new byte[COMPRESSION_SAMPLE_SIZE];
+      mIsCompressed = true;
+    }
+    writeData(sample, 0, sampleCount);
+  }
+
+  private static boolean isCompressible(byte[] sample, int sampleCount) {
+    if (sampleCount == 0) {
+      return false;
+    }
+    int maxCompressedCount = (int) (sampleCount * MAX_COMPRESSION_RATIO);
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(sample, 0, sampleCount);
+      deflater.finish();
+      byte[] output = new byte[sampleCount];
+      int compressedCount = 0;
+      while (!deflater.finished() && compressedCount < maxCompressedCount) {
+        compressedCount += deflater.deflate(output);
+      }
+      return compressedCount < maxCompressedCount;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private void finishCompression() {
+    if (mSample != null) {
+      startCompressionIfUseful();
+    }
+    if (mDeflater != null) {
+      mDeflater.finish();
+      while (!mDeflater.finished()) {
+        writeDeflaterOutput();
+      }
+    }
+  }
+
+  private void writeDeflaterOutput() {
+    int count = mDeflater.deflate(mDeflaterOutput);
+    if (count > 0) {
+      writeStored(mDeflaterOutput, 0, count);
+    }
+  }
+
+  private void endDeflater() {
+    if (mDeflater != null) {
+      mDeflater.end();
+      mDeflater = null;
+    }
+  }
+
+  /**
+   * @return the length of the entry before compression, or {@link Entry#NOT_COMPRESSED} if the
+   * entry is not compressed.
+   */
+  private long getUncompressedLengthInBytes() {
+    return mIsCompressed ? mWrittenBytes : Entry.NOT_COMPRESSED;
+  }
+
+  private long[] getValueLengths() {
+    if (mValueLengths != null) {
+      mValueLengths[mValueIndex] = mWrittenBytes - mValueStart;
+    }
+    return mValueLengths;
+  }
+
+  private void writeToFile(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+    while (byteCount > 0) {
+      if (mFileChannel == null) {
+        openDirtyFile();
+      }
+      if (mFileBuffer == null) {
+        mFileBuffer = mCache.getBufferPool().acquire();
+      } else if (!mFileBuffer.hasRemaining()) {
+        writeFileBuffer();
+      }
+      int count = byteCount;
+      if (mChunkSizeInBytes > 0) {
+        count = (int) Math.min(count, mChunkSizeInBytes - mFileBytes);
+      }
+      if (mFileBuffer.position() == 0 && count >= mFileBuffer.capacity()) {
+        // Nothing is buffered and the data would fill the buffer, write it directly.
+        ByteBuffer source = ByteBuffer.wrap(buffer, byteOffset, count);
+        while (source.hasRemaining()) {
+          mFileChannel.write(source, mFileBytes + source.position() - byteOffset);
+        }
+      } else {
+        count = Math.min(count, mFileBuffer.remaining());
+        mFileBuffer.put(buffer, byteOffset, count);
+      }
+      if (mChunkDigest != null) {
+        mChunkDigest.update(buffer, byteOffset, count);
+      }
+      mFileBytes += count;
+      mLengthInBytes += count;
+      byteOffset += count;
+      byteCount -= count;
+      if (mFileBytes == mChunkSizeInBytes) {
+        storeChunk();
+      }
+    }
+  }
+
+  private void openDirtyFile() throws IOException {
+    try {
+      mFileChannel = new FileOutputStream(mDirtyFile).getChannel();
+    } catch (FileNotFoundException e) {
+      // Attempt to recreate the cache directory, no need to handle the mkdirs return result.
+      mDirtyFile.getParentFile().mkdirs();
+      mFileChannel = new FileOutputStream(mDirtyFile).getChannel();
+    }
+  }
+
+  /**
+   * Write the data held by the file buffer to the end of the written part of the file.
+   */
+  private void writeFileBuffer() throws IOException {
+    if (mFileBuffer == null || mFileBuffer.position() == 0) {
+      return;
+    }
+    mFileBuffer.flip();
+    long position = mFileBytes - mFileBuffer.remaining();
+    while (mFileBuffer.hasRemaining()) {
+      position += mFileChannel.write(mFileBuffer, position);
+    }
+    mFileBuffer.clear();
+  }
+
+  private void releaseFileBuffer() {
+    if (mFileBuffer != null) {
+      mCache.getBufferPool().release(mFileBuffer);
+      mFileBuffer = null;
+    }
+  }
+
+  /**
+   * Move the dirty file, which holds a whole chunk or the last chunk, to the chunk store.
+   */
+  private void storeChunk() throws IOException {
+    writeFileBuffer();
+    mFileChannel.close();
+    mFileChannel = null;
+    mFileBytes = 0;
+    byte[] digest = mChunkDigest.digest();
+    char[] hash = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; i++) {
+      hash[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+      hash[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+    }
+    mCache.storeChunk(mDirtyFile, new String(hash));
+    mChunkHashes.add(new String(hash));
+  }
+
+  private String[] getChunkHashes() {
+    return mChunkHashes.isEmpty() ? null : mChunkHashes.toArray(new String[mChunkHashes.size()]);
+  }
+
+  private static MessageDigest createChunkDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      return null; // Store the entry as a single file.
+    }
+  }
+
   private void checkNotClosedOrEditingConcurrently() {
     if (mIsClosed) {
       throw new IllegalStateException(
               "Try to operate on an EditorOutputStream that is already closed");
     }
-    if (mEntry.getCurrentEditorStream() != this) {
+    if (!mIsConcurrent && mEntry.getCurrentEditorStream() != this) {
       throw new IllegalStateException(
               "Two editors trying to write to the same cached file");
     }
@@ -17,11 +17,30 @@ import java.io.File;
 /* package */ final class Entry {
   /* package */ static final String CLEAN_FILE_EXTENSION = ".clean";
   /* package */ static final String DIRTY_FILE_EXTENSION = ".tmp";
+  // Not allowed in keys, so the files of concurrent editors don't clash with other entries
+  /* package */ static final char CONCURRENT_EDIT_SEPARATOR = '~';
+  /* package */ static final long NOT_COMPRESSED = -1;
+  /* package */ static final long NO_CHECKSUM = -1;
+  /* package */ static final long NO_VERSION = 0;
+  /* package */ static final long FIRST_VERSION = 1;
   private final File mDirectory;
   private final String mKey;
   private long mLengthInBytes;
   private boolean mIsReadable;
   private EditorOutputStream mCurrentEditorStream;
+  private CachePartition mPartition;
+  private long mReservedBytes;
+  private long mTombstoneExpiryMillis;
+  private int mSegmentId = SegmentStore.NO_SEGMENT;
+  private long mSegmentOffset;
+  private String[] mChunkHashes;
+  private int mChunkSizeInBytes;
+  private long mCompleteLengthInBytes;
+  private long mUncompressedLengthInBytes = NOT_COMPRESSED;
+  private long mChecksum = NO_CHECKSUM;
+  private long[] mValueLengths;
+  private byte[] mMetadata;
+  private long mVersion = NO_VERSION;
 
   /* package */ Entry(File directory, String key) {
     mDirectory = directory;
@@ -38,6 +57,21 @@ import java.io.File;
     return new File(mDirectory, mKey + DIRTY_FILE_EXTENSION);
   }
 
+  /**
+   * Get the temporary file of a concurrent editor, see {@link IgDiskCache#editConcurrently}.
+   */
+  /* package */ File getConcurrentDirtyFile(long editId) {
+    return new File(
+            mDirectory, mKey + CONCURRENT_EDIT_SEPARATOR + editId + DIRTY_FILE_EXTENSION);
+  }
+
+  /**
+   * Get the segment file holding the Entry data, only meaningful for a packed Entry.
+   */
+  /* package */ File getSegmentFile() {
+    return SegmentStore.getSegmentFile(mDirectory, getSegmentId());
+  }
+
   /* package */ synchronized long getLengthInBytes() {
       return mLengthInBytes;
   }
@@ -54,13 +88,231 @@ import java.io.File;
       mCurrentEditorStream = currentEditorStream;
   }
 
+  /* package */ synchronized CachePartition getPartition() {
+      return mPartition;
+  }
+
+  /* package */ synchronized void setPartition(CachePartition partition) {
+      mPartition = partition;
+  }
+
+  /* package */ synchronized void setReservedBytes(long reservedBytes) {
+      mReservedBytes = reservedBytes;
+  }
+
+  /**
+   * Clear the space reserved for the current edit.
+   * @return the number of bytes that were reserved.
+   */
+  /* package */ synchronized long takeReservedBytes() {
+      long reservedBytes = mReservedBytes;
+      mReservedBytes = 0;
+      return reservedBytes;
+  }
+
   /* package */ String getKey() {
     return mKey;
   }
 
-  /* package */ synchronized void markAsPublished(long newLength) {
+  /**
+   * Publish Entry data that is stored in its own clean file.
+   * @param version the version of the Entry once published, see {@link IgDiskCache#getVersion}.
+   */
+  /* package */ synchronized void markAsPublished(long newLength, long version) {
       mLengthInBytes = newLength;
+      mCompleteLengthInBytes = newLength;
       mCurrentEditorStream = null;
       mIsReadable = true;
+      mTombstoneExpiryMillis = 0;
+      mSegmentId = SegmentStore.NO_SEGMENT;
+      mChunkHashes = null;
+      mUncompressedLengthInBytes = NOT_COMPRESSED;
+      mChecksum = NO_CHECKSUM;
+      mValueLengths = null;
+      mMetadata = null;
+      mVersion = version;
+  }
+
+  /**
+   * Publish Entry data that is stored as a list of chunks, see {@link ChunkStore}.
+   */
+  /* package */ synchronized void markAsPublished(
+          long newLength,
+          long version,
+          int chunkSizeInBytes,
+          String[] chunkHashes) {
+      markAsPublished(newLength, version);
+      setChunks(chunkSizeInBytes, chunkHashes);
+  }
+
+  /* package */ synchronized boolean isChunked() {
+      return mChunkHashes != null;
+  }
+
+  /**
+   * Get the hashes of the chunks holding the Entry data, in order, or null if the Entry is not
+   * chunked.
+   */
+  /* package */ synchronized String[] getChunkHashes() {
+      return mChunkHashes;
+  }
+
+  /* package */ synchronized int getChunkSizeInBytes() {
+      return mChunkSizeInBytes;
+  }
+
+  /* package */ synchronized void setChunks(int chunkSizeInBytes, String[] chunkHashes) {
+      mChunkSizeInBytes = chunkSizeInBytes;
+      mChunkHashes = chunkHashes;
+  }
+
+  /**
+   * Get the length of the Entry data before tail chunks got evicted.
+   */
+  /* package */ synchronized long getCompleteLengthInBytes() {
+      return mCompleteLengthInBytes;
+  }
+
+  /* package */ synchronized void setCompleteLengthInBytes(long completeLength) {
+      mCompleteLengthInBytes = completeLength;
+  }
+
+  /* package */ synchronized boolean isCompressed() {
+      return mUncompressedLengthInBytes != NOT_COMPRESSED;
+  }
+
+  /**
+   * Get the length of the Entry data before compression, or {@link #NOT_COMPRESSED} if the Entry
+   * data is stored as written.
+   */
+  /* package */ synchronized long getUncompressedLengthInBytes() {
+      return mUncompressedLengthInBytes;
+  }
+
+  /* package */ synchronized void setUncompressedLengthInBytes(long uncompressedLength) {
+      mUncompressedLengthInBytes = uncompressedLength;
+  }
+
+  /**
+   * Get the CRC32 of the Entry data as it is stored, or {@link #NO_CHECKSUM} if the Entry was
+   * published without one.
+   */
+  /* package */ synchronized long getChecksum() {
+      return mChecksum;
+  }
+
+  /* package */ synchronized void setChecksum(long checksum) {
+      mChecksum = checksum;
+  }
+
+  /**
+   * Get the lengths of the values of an Entry that holds several values, stored one after the
+   * other, or null if the Entry holds a single value.
+   */
+  /* package */ synchronized long[] getValueLengths() {
+      return mValueLengths;
+  }
+
+  /* package */ synchronized void setValueLengths(long[] valueLengths) {
+      mValueLengths = valueLengths;
+  }
+
+  /**
+   * Get the metadata published with the Entry, or null if the Entry has none.
+   */
+  /* package */ synchronized byte[] getMetadata() {
+      return mMetadata;
+  }
+
+  /* package */ synchronized void setMetadata(byte[] metadata) {
+      mMetadata = metadata;
+  }
+
+  /**
+   * Get the version the Entry got published at, see {@link IgDiskCache#getVersion}, or
+   * {@link #NO_VERSION} if it is not published.
+   */
+  /* package */ synchronized long getVersion() {
+      return mVersion;
+  }
+
+  /* package */ synchronized void setVersion(long version) {
+      mVersion = version;
+  }
+
+  /**
+   * Drop the last chunk of a chunked Entry, keeping the data before it readable.
+   * @return the hash of the dropped chunk.
+   */
+  /* package */ synchronized String truncateLastChunk() {
+      int chunkCount = mChunkHashes.length;
+      String lastChunk = mChunkHashes[chunkCount - 1];
+      String[] chunkHashes = new String[chunkCount - 1];
+      System.arraycopy(mChunkHashes, 0, chunkHashes, 0, chunkCount - 1);
+      mChunkHashes = chunkHashes;
+      mLengthInBytes = (long) mChunkSizeInBytes * (chunkCount - 1);
+      return lastChunk;
+  }
+
+  /**
+   * Publish Entry data that is packed into a segment file instead of its own clean file.
+   */
+  /* package */ synchronized void markAsPublished(
+          long newLength,
+          long version,
+          int segmentId,
+          long offset) {
+      markAsPublished(newLength, version);
+      setSegmentLocation(segmentId, offset);
+  }
+
+  /* package */ synchronized boolean isPacked() {
+      return mSegmentId != SegmentStore.NO_SEGMENT;
+  }
+
+  /* package */ synchronized int getSegmentId() {
+      return mSegmentId;
+  }
+
+  /* package */ synchronized long getSegmentOffset() {
+      return mSegmentOffset;
+  }
+
+  /* package */ synchronized void setSegmentLocation(int segmentId, long offset) {
+      mSegmentId = segmentId;
+      mSegmentOffset = offset;
+  }
+
+  /**
+   * Detach a removed packed or chunked Entry from its storage, so that compaction won't move it
+   * and new snapshots won't open its chunks.
+   */
+  /* package */ synchronized void markAsRemoved() {
+      mIsReadable = false;
+      mVersion = NO_VERSION;
+      mSegmentId = SegmentStore.NO_SEGMENT;
+      mChunkHashes = null;
+  }
+
+  /**
+   * Turn the Entry into a tombstone: the value is known not to exist until the expiry time.
+   * Tombstones have no file on disk.
+   */
+  /* package */ synchronized void markAsTombstone(long expiryMillis) {
+      mLengthInBytes = 0;
+      mIsReadable = false;
+      mSegmentId = SegmentStore.NO_SEGMENT;
+      mChunkHashes = null;
+      mMetadata = null;
+      mVersion = NO_VERSION;
+      mTombstoneExpiryMillis = expiryMillis;
+  }
+
+  /* package */ synchronized boolean isTombstone() {
+      return mTombstoneExpiryMillis > 0;
+  }
+
+  /* package */ synchronized long getTombstoneExpiryMillis() {
+      return mTombstoneExpiryMillis;
   }
 }
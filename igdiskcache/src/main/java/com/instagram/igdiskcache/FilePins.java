@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+
+package com.instagram.igdiskcache;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reference counts of the cache files that are memory-mapped by a {@link MappedSnapshot}. Deleting
+ * a pinned file is deferred until the last mapping of the file is released. Deleting a file also
+ * drops it from the {@link OpenFileCache}.
+ */
+/* package */ final class FilePins {
+  private final OpenFileCache mOpenFileCache;
+  // Guarded by this
+  private final Map<File, Integer> mPinCounts = new HashMap<>();
+  // Guarded by this
+  private final Set<File> mPendingDeletions = new HashSet<>();
+
+  /* package */ FilePins(OpenFileCache openFileCache) {
+    mOpenFileCache = openFileCache;
+  }
+
+  /* package */ synchronized void pin(File file) {
+    Integer count = mPinCounts.get(file);
+    mPinCounts.put(file, count == null ? 1 : count + 1);
+  }
+
+  /* package */ synchronized void unpin(File file) {
+    Integer count = mPinCounts.get(file);
+    if (count == null) {
+      return;
+    } else if (count > 1) {
+      mPinCounts.put(file, count - 1);
+    } else {
+      mPinCounts.remove(file);
+      if (mPendingDeletions.remove(file)) {
+        file.delete(); // No need to handle the fail case. Ignore the return.
+      }
+    }
+  }
+
+  /**
+   * Delete the file, or defer the deletion until the file is unpinned.
+   * @return true if the file got deleted or its deletion got deferred.
+   */
+  /* package */ synchronized boolean delete(File file) {
+    mOpenFileCache.invalidate(file);
+    if (mPinCounts.containsKey(file)) {
+      mPendingDeletions.add(file);
+      return true;
+    }
+    return file.delete();
+  }
+
+  /**
+   * Cancel the deferred deletion of a file, because a new file is about to replace it.
+   */
+  /* package */ synchronized void cancelDeletion(File file) {
+    mPendingDeletions.remove(file);
+  }
+}
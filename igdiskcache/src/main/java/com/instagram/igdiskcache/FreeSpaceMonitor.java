@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+
+package com.instagram.igdiskcache;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the free space of the filesystem holding the cache directory, and derives the size
+ * limit of the cache from it: the cache may grow into half of the free space left above the
+ * reserved amount, and gives space back once the free space drops below the reserved amount.
+ * The limit always stays within the configured bounds.
+ */
+/* package */ final class FreeSpaceMonitor {
+  private static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+  private static final float FREE_SPACE_FRACTION = 0.5f;
+
+  private final File mDirectory;
+  private final long mMinSizeInBytes;
+  private final long mReservedFreeSpaceInBytes;
+  private volatile long mTargetSizeInBytes = Long.MAX_VALUE;
+  private volatile boolean mIsLowOnSpace;
+  private volatile long mLastCheckNanos;
+
+  /* package */ FreeSpaceMonitor(
+          File directory,
+          long minSizeInBytes,
+          long reservedFreeSpaceInBytes) {
+    mDirectory = directory;
+    mMinSizeInBytes = minSizeInBytes;
+    mReservedFreeSpaceInBytes = reservedFreeSpaceInBytes;
+  }
+
+  /* package */ boolean isCheckDue() {
+    return System.nanoTime() - mLastCheckNanos > CHECK_INTERVAL_NANOS;
+  }
+
+  /**
+   * Read the free space of the filesystem. Should only be called from the maintenance thread.
+   */
+  /* package */ void update(long cacheSizeInBytes) {
+    mLastCheckNanos = System.nanoTime();
+    long usableSpace = mDirectory.getUsableSpace();
+    // getUsableSpace() returns 0 for a missing directory, which doesn't tell anything.
+    if (usableSpace > 0 || mDirectory.exists()) {
+      update(cacheSizeInBytes, usableSpace);
+    }
+  }
+
+  /* package */ void update(long cacheSizeInBytes, long usableSpaceInBytes) {
+    long spareBytes = usableSpaceInBytes - mReservedFreeSpaceInBytes;
+    mIsLowOnSpace = spareBytes < 0;
+    mTargetSizeInBytes = mIsLowOnSpace
+            ? cacheSizeInBytes + spareBytes
+            : cacheSizeInBytes + (long) (spareBytes * FREE_SPACE_FRACTION);
+  }
+
+  /**
+   * True if the free space was below the reserved amount at the last check. New writes should be
+   * rejected.
+   */
+  /* package */ boolean isLowOnSpace() {
+    return mIsLowOnSpace;
+  }
+
+  /**
+   * Get the size limit derived from the free space, bounded by the configured minimum and the
+   * given maximum.
+   */
+  /* package */ long getSizeLimitInBytes(long maxSizeInBytes) {
+    long minSizeInBytes = Math.min(mMinSizeInBytes, maxSizeInBytes);
+    return Math.max(minSizeInBytes, Math.min(mTargetSizeInBytes, maxSizeInBytes));
+  }
+}
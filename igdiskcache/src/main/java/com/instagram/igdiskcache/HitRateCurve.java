@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+
+package com.instagram.igdiskcache;
+
+/**
+ * Estimated hit rate of a cache as a function of its size, see
+ * {@link IgDiskCache#getEstimatedHitRateCurve()}. The curve is a step function: the hit rate at
+ * {@code getSizesInBytes()[i]} is {@code getHitRates()[i]}, sizes are increasing.
+ */
+public final class HitRateCurve {
+  private final long[] mSizesInBytes;
+  private final float[] mHitRates;
+  private final long mReferenceCount;
+
+  /* package */ HitRateCurve(long[] sizesInBytes, float[] hitRates, long referenceCount) {
+    mSizesInBytes = sizesInBytes;
+    mHitRates = hitRates;
+    mReferenceCount = referenceCount;
+  }
+
+  /**
+   * Get the cache sizes (in bytes) the hit rate was estimated at.
+   */
+  public long[] getSizesInBytes() {
+    return mSizesInBytes.clone();
+  }
+
+  /**
+   * Get the estimated hit rates (between 0 and 1) at each of {@link #getSizesInBytes()}.
+   */
+  public float[] getHitRates() {
+    return mHitRates.clone();
+  }
+
+  /**
+   * Get the estimated number of cache references the curve was built from.
+   */
+  public long getReferenceCount() {
+    return mReferenceCount;
+  }
+
+  /**
+   * Get the estimated hit rate (between 0 and 1) of a cache of the given size.
+   */
+  public float getHitRate(long sizeInBytes) {
+    float hitRate = 0;
+    for (int i = 0; i < mSizesInBytes.length && mSizesInBytes[i] <= sizeInBytes; i++) {
+      hitRate = mHitRates[i];
+    }
+    return hitRate;
+  }
+
+  /**
+   * Get the smallest cache size (in bytes) estimated to reach the given hit rate, or -1 if no
+   * size on the curve reaches it.
+   */
+  public long getRecommendedSizeInBytes(float targetHitRate) {
+    for (int i = 0; i < mSizesInBytes.length; i++) {
+      if (mHitRates[i] >= targetHitRate) {
+        return mSizesInBytes[i];
+      }
+    }
+    return -1;
+  }
+}
@@ -12,17 +12,25 @@ package com.instagram.igdiskcache;
 import android.os.AsyncTask;
 import android.os.Looper;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -30,6 +38,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 /**
  * Disk cache that uses a bounded amount of space and with a maximum number of entries on the
@@ -77,6 +86,9 @@ import java.util.regex.Pattern;
  *   }
  * </pre>
  *
+ * <p> Several logical caches can share one IgDiskCache, its journal and its maintenance thread by
+ * registering named partitions with {@link #addPartition}, each with its own quota and LRU list.
+ *
  * <p> This class will silently handle most of the IOExceptions. If files are missing from the
  * filesystem, the corresponding entries will be dropped from the cache.
  *
@@ -85,8 +97,15 @@ import java.util.regex.Pattern;
 public final class IgDiskCache {
   private static final String STRING_KEY_PATTERN = "[a-z0-9_-]{1,120}";
   private static final Pattern LEGAL_KEY_PATTERN = Pattern.compile(STRING_KEY_PATTERN);
+  private static final String STRING_PARTITION_NAME_PATTERN = "[a-z0-9_-]{1,32}";
+  private static final Pattern LEGAL_PARTITION_NAME_PATTERN =
+          Pattern.compile(STRING_PARTITION_NAME_PATTERN);
   private static final long DEFAULT_MAX_SIZE = 1024 * 1024 * 30; // maximum 30 megs in size
   private static final int DEFAULT_MAX_COUNT = 1000; // maximum 1000 files
+  private static final int COPY_BUFFER_SIZE = 8192;
+  private static final int MAX_POOLED_BUFFERS = 4;
+  private static final long ANY_VERSION = -1;
+  public static final int MAX_METADATA_SIZE_IN_BYTES = 256;
   private static final ThreadPoolExecutor DISK_CACHE_EXECUTOR =
           new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
   static final File FAKE_CACHE_DIRECTORY = new File("/dev/null");
@@ -96,24 +115,114 @@ public final class IgDiskCache {
   private final Object mRemoveRetryLock = new Object();
   // Guarded by mDiskCacheLock
   private final LinkedHashMap<String, Entry> mLruEntries;
+  // Guarded by mDiskCacheLock
+  private final Map<String, CachePartition> mPartitions;
+  private final CachePartition mDefaultPartition;
   // Guarded by mRemoveRetryLock
   private final List<Entry> mRemoveRetryList;
+  // Guarded by mDiskCacheLock
+  private long mLastVersion = Entry.NO_VERSION;
   private final AtomicLong mSizeInBytes = new AtomicLong();
+  private final AtomicLong mReservedBytes = new AtomicLong();
   private final Journal mJournal;
-  private int mMaxCount;
-  private long mMaxSizeInBytes;
+  private final SegmentStore mSegmentStore;
+  private final ChunkStore mChunkStore;
+  private final OpenFileCache mOpenFileCache = new OpenFileCache();
+  private final FilePins mFilePins = new FilePins(mOpenFileCache);
+  private final BufferPool mBufferPool = new BufferPool(MAX_POOLED_BUFFERS);
+  private final AtomicLong mConcurrentEditIds = new AtomicLong();
+  private volatile int mMaxCount;
+  private volatile long mMaxSizeInBytes;
+  private volatile long mMaxEntrySizeInBytes = Long.MAX_VALUE;
+  private volatile int mMaxPackedEntrySizeInBytes;
+  private volatile int mChunkSizeInBytes;
+  private volatile boolean mIsDeduplicationEnabled;
+  private volatile boolean mIsCompressionEnabled;
+  private volatile int mValueCount = 1;
+  private volatile FreeSpaceMonitor mFreeSpaceMonitor;
   private int mMissCount;
   private int mHitCount;
+  private volatile CacheBudgetManager mBudgetManager;
+  private volatile MissRatioCurveEstimator mMissRatioCurveEstimator;
+  private volatile WriteBehindQueue mWriteBehindQueue;
+
+  /**
+   * An edit of a {@link Transaction} whose data is finished and stored, waiting for the other
+   * edits of the Transaction to be published with them.
+   */
+  /* package */ static final class StagedEdit {
+    final Entry mEntry;
+    final long mLength;
+    final long mUncompressedLength;
+    final long mChecksum;
+    final long[] mValueLengths;
+    final byte[] mMetadata;
+    // Where the data is: a file of its own, a segment, or chunks
+    File mDirtyFile;
+    SegmentStore.Location mLocation;
+    int mChunkSizeInBytes;
+    String[] mChunkHashes;
+    // The clean file replaced by the edit, moved aside until all the edits are published
+    File mBackupFile;
+    // State of the Entry before the edit got published
+    long mOldLength;
+    long mOldOwnedLength;
+    String[] mOldChunkHashes;
+    boolean mHasOldCleanFile;
+
+    StagedEdit(
+            Entry entry,
+            long length,
+            long uncompressedLength,
+            long checksum,
+            long[] valueLengths,
+            byte[] metadata) {
+      mEntry = entry;
+      mLength = length;
+      mUncompressedLength = uncompressedLength;
+      mChecksum = checksum;
+      mValueLengths = valueLengths;
+      mMetadata = metadata;
+    }
+  }
 
   private final Runnable mTrimRunnable = new Runnable() {
     @Override
     public void run() {
-      if (mSizeInBytes.get() > mMaxSizeInBytes || count() > mMaxCount) {
+      if (isOverLimits()) {
         trimToSizeAndCount();
       }
     }
   };
 
+  private final Runnable mFreeSpaceCheckRunnable = new Runnable() {
+    @Override
+    public void run() {
+      FreeSpaceMonitor freeSpaceMonitor = mFreeSpaceMonitor;
+      if (freeSpaceMonitor != null && freeSpaceMonitor.isCheckDue()) {
+        freeSpaceMonitor.update(size());
+        mTrimRunnable.run();
+      }
+    }
+  };
+
+  private final Runnable mRebalanceRunnable = new Runnable() {
+    @Override
+    public void run() {
+      CacheBudgetManager budgetManager = mBudgetManager;
+      if (budgetManager != null) {
+        budgetManager.rebalance();
+      }
+    }
+  };
+
+  private final Runnable mCompactionRunnable = new Runnable() {
+    @Override
+    public void run() {
+      compactSegments();
+    }
+  };
+
   /**
    * Disk Cache initialization.
    * @param directory directory for disk cache.
@@ -177,17 +286,68 @@ public final class IgDiskCache {
     mMissCount = 0;
     mHitCount = 0;
     mJournal = new Journal(mDirectory, this, serialExecutor);
+    mSegmentStore = new SegmentStore(mDirectory, mFilePins);
+    mChunkStore = new ChunkStore(mDirectory, mFilePins);
     mLruEntries = new LinkedHashMap<>(0, 0.75f, true);
+    mPartitions = new HashMap<>();
+    mDefaultPartition = new CachePartition(null, Long.MAX_VALUE, Integer.MAX_VALUE);
     LinkedHashMap<String, Entry> cachedEntries = mJournal.retrieveEntriesFromJournal();
     if (cachedEntries == null) {
       mDirectory.mkdirs(); //will try to recreate the directory the next time we edit.
       mJournal.rebuild();
     } else {
-      mLruEntries.putAll(cachedEntries);
-      for (Entry entry : mLruEntries.values()) {
-        mSizeInBytes.getAndAdd(entry.getLengthInBytes());
+      synchronized (mDiskCacheLock) {
+        for (Entry entry : cachedEntries.values()) {
+          putEntryLocked(entry);
+          adjustSize(entry, entry.getLengthInBytes(), getOwnedLengthInBytes(entry));
+        }
+        mLastVersion = mJournal.getMaxVersion();
+      }
+      mSegmentStore.restore(cachedEntries.values(), mJournal.getMaxSegmentId());
+      mChunkStore.restore(cachedEntries.values());
+      DISK_CACHE_EXECUTOR.execute(mCompactionRunnable);
+    }
+  }
+
+  /**
+   * Register a named partition with its own quota and LRU list, or update the quota of an
+   * existing one. Entries restored from the journal whose keys belong to the partition are moved
+   * into it.
+   * @param name partition name, which must match the regex <strong>[a-z0-9_-]{1,32}</strong>.
+   * @param maxSizeInBytes size quota of the partition (in bytes).
+   * @param maxCount entry count quota of the partition.
+   * @throws IllegalArgumentException if name is not valid.
+   */
+  public CachePartition addPartition(String name, long maxSizeInBytes, int maxCount) {
+    if (!LEGAL_PARTITION_NAME_PATTERN.matcher(name).matches()) {
+      throw new IllegalArgumentException(
+              "partition names must match regex " + STRING_PARTITION_NAME_PATTERN + ": \""
+                      + name + "\"");
+    }
+    CachePartition partition;
+    synchronized (mDiskCacheLock) {
+      partition = mPartitions.get(name);
+      if (partition != null) {
+        partition.setQuota(maxSizeInBytes, maxCount);
+      } else {
+        partition = new CachePartition(name, maxSizeInBytes, maxCount);
+        mPartitions.put(name, partition);
+        String prefix = partition.key("");
+        // Iterating in LRU order keeps the adopted entries in LRU order inside the partition.
+        for (Entry entry : mLruEntries.values()) {
+          if (entry.getKey().startsWith(prefix)) {
+            CachePartition previous = entry.getPartition();
+            previous.remove(entry.getKey());
+            previous.addSize(-entry.getLengthInBytes());
+            entry.setPartition(partition);
+            partition.put(entry);
+            partition.addSize(entry.getLengthInBytes());
+          }
+        }
       }
     }
+    DISK_CACHE_EXECUTOR.execute(mTrimRunnable);
+    return partition;
   }
 
   /**
@@ -196,273 +356,2059 @@ public final class IgDiskCache {
    */
   public boolean has(String key) {
     validateKey(key);
+    if (getQueuedValue(key) != null) {
+      return true;
+    }
     Entry entry;
     synchronized (mDiskCacheLock) {
-      entry = mLruEntries.get(key);
+      entry = getEntryLocked(key);
     }
-    return entry != null && entry.isReadable() && entry.getCleanFile().exists();
+    return entry != null && entry.isReadable() && getDataFile(entry).exists();
   }
 
   /**
-   * Get the {@link SnapshotInputStream} of the Entry with the given key. If the Entry doesn't
-   * exists or the file system is not accessible, an OptionalStream.absent() will be returned.
+   * Check if a tombstone recorded with {@link #putTombstone} tells that the value of the given key
+   * is known not to exist.
    * @throws IllegalArgumentException if key is not valid.
    */
-  public OptionalStream<SnapshotInputStream> get(String key) {
+  public boolean isKnownAbsent(String key) {
     validateKey(key);
+    if (getQueuedValue(key) != null) {
+      // The queued value replaces the tombstone once written.
+      return false;
+    }
     Entry entry;
     synchronized (mDiskCacheLock) {
-      entry = mLruEntries.get(key);
-    }
-    if (entry == null || !entry.isReadable()) {
-      mMissCount++;
-      return OptionalStream.absent();
-    } else {
-      mHitCount++;
-      try {
-        return OptionalStream.of(new SnapshotInputStream(entry));
-      } catch (IOException e) {
-        return OptionalStream.absent();
-      }
+      entry = getEntryLocked(key);
     }
+    return entry != null && isLiveTombstone(entry);
   }
 
   /**
-   * Get the {@link EditorOutputStream} of the Entry with the given key. If the Entry doesn't
-   * exists or the file system is not accessible, an OptionalStream.absent() will be returned.
+   * Get the {@link SnapshotInputStream} of the Entry with the given key. If the Entry doesn't
+   * exists or the file system is not accessible, an OptionalStream.absent() will be returned. If
+   * a tombstone tells that the value is known not to exist, an OptionalStream.knownAbsent() will
+   * be returned.
+   * <p> The data is checked against the checksum published with the Entry only if the stream
+   * reads it in order from the start to the end, see {@link SnapshotInputStream}.
    * @throws IllegalArgumentException if key is not valid.
-   * @throws IllegalStateException if require edit on an entry that is currently under edit.
    */
-  public OptionalStream<EditorOutputStream> edit(String key) {
-    validateKey(key);
-    if (mMaxSizeInBytes == 0 || mMaxCount == 0 || FAKE_CACHE_DIRECTORY.equals(mDirectory)) {
-      return OptionalStream.absent();
-    } else {
-      Entry entry;
-      synchronized (mDiskCacheLock) {
-        entry = mLruEntries.get(key);
-      }
-      if (entry == null) {
-        entry = new Entry(mDirectory, key);
-        synchronized (mDiskCacheLock) {
-          mLruEntries.put(key, entry);
-        }
-      } else if (entry.getCurrentEditorStream() != null) {
-        throw new IllegalStateException(
-                "Trying to edit a disk cache entry while another edit is in progress.");
-      }
-      mJournal.logDirtyFileUpdate(key);
-      return getOutputStream(entry);
+  public OptionalStream<SnapshotInputStream> get(String key) {
+    return get(key, 0, Long.MAX_VALUE);
+  }
+
+  /**
+   * Get a {@link SnapshotInputStream} reading a byte range of the Entry with the given key: the
+   * stream starts at offset and ends after length bytes, or at the end of the Entry. For an Entry
+   * holding several values, the range is a range of the first value. Otherwise behaves like
+   * {@link #get(String)}. A range that doesn't cover the whole Entry is not checked against the
+   * checksum.
+   * @throws IllegalArgumentException if key is not valid, or offset or length is negative.
+   */
+  public OptionalStream<SnapshotInputStream> get(String key, long offset, long length) {
+    return getValue(key, 0, offset, length);
+  }
+
+  /**
+   * Get a {@link SnapshotInputStream} reading one of the values of the Entry with the given key,
+   * see {@link #setValueCount(int)}. The values that were not written are empty. Otherwise
+   * behaves like {@link #get(String)}. The checksum covers the whole Entry, a single value is not
+   * checked against it unless the Entry holds only that value.
+   * @throws IllegalArgumentException if key is not valid, or index is negative.
+   */
+  public OptionalStream<SnapshotInputStream> getValue(String key, int index) {
+    if (index < 0) {
+      throw new IllegalArgumentException("Negative value index: " + index);
     }
+    return getValue(key, index, 0, Long.MAX_VALUE);
   }
 
-  private synchronized OptionalStream<EditorOutputStream> getOutputStream(Entry entry) {
-    if (entry.getCurrentEditorStream() != null) {
-      throw new IllegalStateException(
-              "Trying to edit a disk cache entry while another edit is in progress.");
+  private OptionalStream<SnapshotInputStream> getValue(
+          String key,
+          int index,
+          long offset,
+          long length) {
+    if (offset < 0 || length < 0) {
+      throw new IllegalArgumentException(
+              "Invalid range, offset: " + offset + ", length: " + length);
     }
-    EditorOutputStream outputStream;
-    try {
-      outputStream = new EditorOutputStream(entry, this);
-    } catch (FileNotFoundException e) {
-      // Attempt to recreate the cache directory, no need to handle the mkdirs return result.
-      mDirectory.mkdirs();
-      try {
-        outputStream = new EditorOutputStream(entry, this);
-      } catch (FileNotFoundException e2) {
-        return OptionalStream.absent();
-      }
+    OptionalStream<RandomAccessSnapshot> snapshot = openSnapshot(key);
+    if (snapshot.isPresent()) {
+      return OptionalStream.of(
+              new SnapshotInputStream(snapshot.get(), mBufferPool, index, offset, length));
     }
-    entry.setCurrentEditorStream(outputStream);
-    return OptionalStream.of(outputStream);
+    return snapshot.isKnownAbsent()
+            ? OptionalStream.<SnapshotInputStream>knownAbsent()
+            : OptionalStream.<SnapshotInputStream>absent();
   }
 
   /**
-   * Remove the Entry with the given key from cache.
-   * If the Entry is still under edit, EditorOutputStream need to be committed/aborted before
-   * removing.
+   * Read the Entry with the given key into a new array, without going through a stream. For an
+   * Entry holding several values, this is the first value. If the Entry doesn't exist or the file
+   * system is not accessible, an OptionalStream.absent() will be returned. If a tombstone tells
+   * that the value is known not to exist, an OptionalStream.knownAbsent() will be returned.
    * @throws IllegalArgumentException if key is not valid.
+   * @throws IOException if reading the Entry fails, or its data is corrupted.
    */
-  public void remove(String key) throws IllegalStateException {
-    validateKey(key);
-    Entry entry;
-    synchronized (mDiskCacheLock) {
-      entry = mLruEntries.remove(key);
+  public OptionalStream<byte[]> getBytes(String key) throws IOException {
+    byte[] queued = getQueuedValue(key);
+    if (queued != null) {
+      return OptionalStream.of(queued.clone());
     }
-    if (entry != null) {
-      if (entry.getCurrentEditorStream() != null) {
-        throw new IllegalStateException(
-                "trying to remove a disk cache entry that is still under edit.");
-      }
-      File file = entry.getCleanFile();
-      if (!file.exists() || file.delete()) {
-        mSizeInBytes.getAndAdd(-entry.getLengthInBytes());
-      } else {
-        synchronized (mRemoveRetryLock) {
-          mRemoveRetryList.add(entry);
-        }
-      }
+    OptionalStream<SnapshotInputStream> in = get(key);
+    if (!in.isPresent()) {
+      return in.isKnownAbsent()
+              ? OptionalStream.<byte[]>knownAbsent()
+              : OptionalStream.<byte[]>absent();
+    }
+    try {
+      return OptionalStream.of(in.get().readFully().array());
+    } finally {
+      in.get().close();
     }
   }
 
   /**
-   * Instantly trim the cache to size and count, and rebuild the cache journal if trim happens.
+   * Read the Entry with the given key into the destination buffer, without going through a
+   * stream: the data is read from the file straight into the destination. For an Entry holding
+   * several values, this is the first value. Nothing is read if the Entry doesn't fit in the room
+   * left in the destination, the returned length tells how much room is needed. A compressed
+   * Entry is still inflated through a stream.
+   * @return the length of the Entry, or -1 if the Entry is not in the cache.
+   * @throws IllegalArgumentException if key is not valid.
+   * @throws EOFException if the Entry data ends early.
+   * @throws IOException if reading the Entry fails, or its data is corrupted.
    */
-  public void flush() {
-    trimToSizeAndCount();
-    mJournal.rebuildIfNeeded();
+  public long getInto(String key, ByteBuffer destination) throws IOException {
+    byte[] queued = getQueuedValue(key);
+    if (queued != null) {
+      if (queued.length <= destination.remaining()) {
+        destination.put(queued);
+      }
+      return queued.length;
+    }
+    OptionalStream<RandomAccessSnapshot> snapshot = openSnapshot(key);
+    if (!snapshot.isPresent()) {
+      return -1;
+    } else if (snapshot.get().isCompressed()) {
+      SnapshotInputStream in =
+              new SnapshotInputStream(snapshot.get(), mBufferPool, 0, 0, Long.MAX_VALUE);
+      try {
+        long length = in.getLengthInBytes();
+        if (length <= destination.remaining()) {
+          ByteBuffer data = destination.slice();
+          data.limit((int) length);
+          if (in.readFully(data) < length) {
+            throw new EOFException("The entry data ends early.");
+          }
+          destination.position(destination.position() + (int) length);
+        }
+        return length;
+      } finally {
+        in.close();
+      }
+    }
+    try {
+      long length = snapshot.get().getValueLength(0);
+      if (length <= destination.remaining()) {
+        ByteBuffer data = destination.slice();
+        data.limit((int) length);
+        snapshot.get().readFully(data, snapshot.get().getValueOffset(0));
+        data.flip();
+        verifyChecksum(snapshot.get(), data);
+        destination.position(destination.position() + (int) length);
+      }
+      return length;
+    } finally {
+      snapshot.get().close();
+    }
   }
 
   /**
-   * Close IgDiskCache and make sure the journal is updated on close. This could only be called from
-   * non-UI thread.
+   * Check the stored data of an Entry read in one go against its checksum, unless the data is not
+   * the whole Entry.
+   * @throws IOException if the data is corrupted, in which case the Entry is removed.
    */
-  public void close() {
-    assertOnNonUIThread();
-    trimToSizeAndCount();
-    mJournal.rebuild();
+  private static void verifyChecksum(RandomAccessSnapshot snapshot, ByteBuffer data)
+          throws IOException {
+    if (snapshot.getChecksum() == Entry.NO_CHECKSUM || !snapshot.isComplete() ||
+            data.remaining() != snapshot.getLengthInBytes()) {
+      return;
+    }
+    CRC32 checksum = new CRC32();
+    if (data.hasArray()) {
+      checksum.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    } else {
+      byte[] bytes = new byte[Math.min(data.remaining(), COPY_BUFFER_SIZE)];
+      ByteBuffer source = data.duplicate();
+      while (source.hasRemaining()) {
+        int count = Math.min(source.remaining(), bytes.length);
+        source.get(bytes, 0, count);
+        checksum.update(bytes, 0, count);
+      }
+    }
+    if (checksum.getValue() != snapshot.getChecksum()) {
+      snapshot.removeCorruptedEntry();
+      throw new IOException("Checksum mismatch, the entry data is corrupted.");
+    }
   }
 
   /**
-   * Get the directory of the current IgDiskCache, return null if it's a stub cache instance.
+   * Get a {@link RandomAccessSnapshot} of the Entry with the given key, which reads any range of
+   * the Entry with a single positional read and can be shared between threads. Compressed entries
+   * can't be read at random positions, for them an OptionalStream.absent() will be returned.
+   * Otherwise behaves like {@link #get(String)}. Positional reads are not checked against the
+   * checksum.
+   * @throws IllegalArgumentException if key is not valid.
    */
-  public File getDirectory() {
-    return FAKE_CACHE_DIRECTORY.equals(mDirectory) ? null : mDirectory;
+  public OptionalStream<RandomAccessSnapshot> getRandomAccess(String key) {
+    OptionalStream<RandomAccessSnapshot> snapshot = openSnapshot(key);
+    if (snapshot.isPresent() && snapshot.get().isCompressed()) {
+      snapshot.get().close();
+      return OptionalStream.absent();
+    }
+    return snapshot;
   }
 
   /**
-   * Get the limit for the disk cache size (in bytes).
+   * Open a snapshot of the Entry data as it is stored, which might be compressed.
    */
-  public long getMaxSizeInBytes() {
-    return mMaxSizeInBytes;
+  private OptionalStream<RandomAccessSnapshot> openSnapshot(String key) {
+    byte[] queued = getQueuedValue(key);
+    if (queued != null) {
+      // Read the queued value from memory rather than waiting for it to be written.
+      return OptionalStream.of(new RandomAccessSnapshot(queued, getVersion(key)));
+    }
+    Entry entry = lookUpForRead(key);
+    if (entry == null) {
+      return OptionalStream.absent();
+    } else if (entry.isTombstone()) {
+      return OptionalStream.knownAbsent();
+    }
+    RandomAccessSnapshot snapshot;
+    try {
+      snapshot = new RandomAccessSnapshot(entry, this, mChunkStore, mOpenFileCache);
+    } catch (IOException e) {
+      return OptionalStream.absent();
+    }
+    try {
+      if (snapshot.hasExpectedFileLength()) {
+        return OptionalStream.of(snapshot);
+      }
+      snapshot.removeCorruptedEntry();
+    } catch (IOException e) {
+      // Handled below.
+    }
+    snapshot.close();
+    return OptionalStream.absent();
   }
 
   /**
-   * Get the limit for the number of entries that can be stored in the cache.
+   * Remove an Entry whose data turned out to be truncated or corrupted, unless it got updated in
+   * the meantime: its length or checksum differ from the corrupted ones.
    */
-  public int getMaxCount() {
-    return mMaxCount;
+  /* package */ void removeCorruptedEntry(Entry entry, long completeLength, long checksum) {
+    synchronized (mDiskCacheLock) {
+      if (mLruEntries.get(entry.getKey()) != entry || !entry.isReadable() ||
+              entry.getCompleteLengthInBytes() != completeLength ||
+              entry.getChecksum() != checksum) {
+        return;
+      }
+    }
+    try {
+      removeEntry(entry.getKey());
+    } catch (IllegalStateException ignored) {
+      // The Entry is under edit, the edit will replace the corrupted data.
+    }
   }
 
   /**
-   * Set the limit for the disk cache size (in bytes).
+   * Get a read-only memory-mapped view of the Entry with the given key. Removing or evicting the
+   * Entry while the view is open defers the deletion of the mapped file until the view is closed.
+   * Compressed entries and entries stored in several chunks have no single file to map, for them
+   * an OptionalStream.absent() will be returned. Otherwise behaves like {@link #get(String)}.
+   * The mapped data is not checked against the checksum.
+   * @throws IllegalArgumentException if key is not valid.
    */
-  public void setMaxSizeInBytes(long maxSizeInBytes) {
-    mMaxSizeInBytes = maxSizeInBytes;
-    DISK_CACHE_EXECUTOR.execute(mTrimRunnable);
+  public OptionalStream<MappedSnapshot> map(String key) {
+    WriteBehindQueue writeBehindQueue = mWriteBehindQueue;
+    if (writeBehindQueue != null) {
+      // The mapping needs a file, write the queued value first.
+      writeBehindQueue.writeNow(key);
+    }
+    Entry entry = lookUpForRead(key);
+    if (entry == null) {
+      return OptionalStream.absent();
+    } else if (entry.isTombstone()) {
+      return OptionalStream.knownAbsent();
+    }
+    File file;
+    long offset;
+    long length;
+    // Pin the file under the lock, so that it can't be released by compaction before it's pinned.
+    synchronized (mDiskCacheLock) {
+      String[] chunkHashes = entry.getChunkHashes();
+      if (!entry.isReadable() || entry.isCompressed() ||
+              (chunkHashes != null && chunkHashes.length > 1) ||
+              entry.getLengthInBytes() > Integer.MAX_VALUE) {
+        return OptionalStream.absent();
+      }
+      file = getDataFile(entry);
+      offset = entry.isPacked() ? entry.getSegmentOffset() : 0;
+      length = entry.getLengthInBytes();
+      mFilePins.pin(file);
+    }
+    RandomAccessFile randomAccessFile = null;
+    try {
+      randomAccessFile = new RandomAccessFile(file, "r");
+      MappedByteBuffer buffer =
+              randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+      return OptionalStream.of(new MappedSnapshot(buffer, file, mFilePins));
+    } catch (IOException e) {
+      mFilePins.unpin(file);
+      return OptionalStream.absent();
+    } finally {
+      // The mapping stays valid after the file is closed.
+      Journal.closeQuietly(randomAccessFile);
+    }
   }
 
   /**
-   * Get disk cache's current size in bytes.
+   * Transfer the Entry with the given key to the target channel, see
+   * {@link #transferTo(String, long, long, WritableByteChannel)}.
    */
-  public long size() {
-    return mSizeInBytes.get();
+  public long transferTo(String key, WritableByteChannel target) throws IOException {
+    return transferTo(key, 0, Long.MAX_VALUE, target);
   }
 
   /**
-   * Get disk cache's entry count.
+   * Transfer a byte range of the Entry with the given key to the target channel (a socket, a pipe,
+   * another file) without copying it through the Java heap: the kernel can use sendfile or splice.
+   * The range starts at offset and ends after length bytes, or at the end of the Entry. For an
+   * Entry holding several values, the range is a range of the first value. Compressed entries get
+   * decompressed and written to the target through a buffer instead. Only the data of compressed
+   * entries, transferred whole, is checked against the checksum.
+   * @return the number of bytes transferred, or -1 if the Entry is not in the cache.
+   * @throws IllegalArgumentException if key is not valid, or offset or length is negative.
+   * @throws IOException if writing to the target channel fails.
    */
-  public int count() {
-    synchronized (mDiskCacheLock) {
-      return mLruEntries.size();
+  public long transferTo(String key, long offset, long length, WritableByteChannel target)
+          throws IOException {
+    if (offset < 0 || length < 0) {
+      throw new IllegalArgumentException(
+              "Invalid range, offset: " + offset + ", length: " + length);
+    }
+    OptionalStream<RandomAccessSnapshot> snapshot = openSnapshot(key);
+    if (!snapshot.isPresent()) {
+      return -1;
+    } else if (snapshot.get().isCompressed()) {
+      return copyTo(
+              new SnapshotInputStream(snapshot.get(), mBufferPool, 0, offset, length),
+              target);
+    }
+    try {
+      long valueLength = snapshot.get().getValueLength(0);
+      if (offset >= valueLength) {
+        return 0;
+      }
+      return snapshot.get().transferTo(offset, Math.min(length, valueLength - offset), target);
+    } finally {
+      snapshot.get().close();
     }
   }
 
-  /**
-   * Get the disk cache's hit rate in the from of a String:
-   * <strong>IgDiskCache[mMaxSizeInBytes=...,hits=...,misses=...,hitRate=...%]</strong>
-   */
-  public final String getHitRateString() {
-    int accesses = mHitCount + mMissCount;
-    int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
-    return String.format(
-            Locale.US,
-            "IgDiskCache[mMaxSizeInBytes=%d,hits=%d,misses=%d,hitRate=%d%%]",
-            mMaxSizeInBytes,
-            mHitCount,
-            mMissCount,
-            hitPercent);
-  }
-
-  private void removeFilesForRemoveRetryList() {
-    synchronized (mRemoveRetryLock) {
-      Iterator<Entry> iterator = mRemoveRetryList.listIterator();
-      while (iterator.hasNext()) {
-        Entry entry = iterator.next();
-        if (entry != null) {
-          File file = entry.getCleanFile();
-          if (file.exists() && file.delete()) {
-            mSizeInBytes.getAndAdd(-entry.getLengthInBytes());
-            iterator.remove();
+  private static long copyTo(SnapshotInputStream in, WritableByteChannel target)
+          throws IOException {
+    try {
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      long copied = 0;
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        ByteBuffer source = ByteBuffer.wrap(buffer, 0, read);
+        while (source.hasRemaining()) {
+          if (target.write(source) == 0) {
+            // The non-blocking target can't accept more bytes right now.
+            return copied + source.position();
           }
         }
+        copied += read;
       }
+      return copied;
+    } finally {
+      in.close();
     }
   }
 
-  private void trimToSizeAndCount() {
-    removeFilesForRemoveRetryList();
+  /**
+   * Look up the Entry to read and record the hit or the miss.
+   * @return the readable Entry, a live tombstone, or null on a miss.
+   */
+  private Entry lookUpForRead(String key) {
+    validateKey(key);
+    Entry entry;
     synchronized (mDiskCacheLock) {
-      while (mSizeInBytes.get() > mMaxSizeInBytes || mLruEntries.size() > mMaxCount) {
-        try {
-          Map.Entry<String, Entry> toEvict = mLruEntries.entrySet().iterator().next();
-          remove(toEvict.getKey());
-        } catch (IllegalStateException | NoSuchElementException ignored) {
-          // If the Entry is still under edit or the set is empty,
-          // keep the Entry without throwing out any Exceptions.
-        }
-      }
+      entry = getEntryLocked(key);
     }
-  }
-
-  private static void validateKey(String key) {
-    Matcher matcher = LEGAL_KEY_PATTERN.matcher(key);
-    if (!matcher.matches()) {
-      throw new IllegalArgumentException(
-              "keys must match regex " + STRING_KEY_PATTERN + ": \"" + key + "\"");
+    if (entry != null && isLiveTombstone(entry)) {
+      mHitCount++;
+      return entry;
     }
-  }
-
-  /* package */ void commitEdit(Entry entry) {
-    File dirty = entry.getDirtyFile();
-    if (!dirty.exists()) {
-      entry.setCurrentEditorStream(null);
-      updateEntry(entry);
-    } else {
-      File clean = entry.getCleanFile();
-      if (dirty.renameTo(clean)) {
-        long oldLength = entry.getLengthInBytes();
-        long newLength = clean.length();
-        entry.markAsPublished(newLength);
-        mSizeInBytes.getAndAdd(newLength - oldLength);
-        updateEntry(entry);
-      } else {
-        abortEdit(entry);
-        remove(entry.getKey());
-      }
+    boolean isHit = entry != null && entry.isReadable();
+    MissRatioCurveEstimator estimator = mMissRatioCurveEstimator;
+    if (estimator != null) {
+      estimator.recordGet(key, isHit ? entry.getLengthInBytes() : 0, isHit);
     }
-  }
-
-  /* package */ void abortEdit(Entry entry) {
-    File dirty = entry.getDirtyFile();
-    if (dirty.exists()) {
-      dirty.delete(); // No need to handle the fail case. Ignore the return.
+    if (!isHit) {
+      mMissCount++;
+      return null;
     }
-    entry.setCurrentEditorStream(null);
-    updateEntry(entry);
+    mHitCount++;
+    return entry;
   }
 
-  private void updateEntry(Entry entry) {
+  /**
+   * Get the {@link EditorOutputStream} of the Entry with the given key. If the Entry doesn't
+   * exists or the file system is not accessible, an OptionalStream.absent() will be returned.
+   * @throws IllegalArgumentException if key is not valid.
+   * @throws IllegalStateException if require edit on an entry that is currently under edit.
+   */
+  public OptionalStream<EditorOutputStream> edit(String key) {
+    validateKey(key);
+    return editEntry(key, 0, null, ANY_VERSION);
+  }
+
+  /**
+   * Get the {@link EditorOutputStream} of the Entry with the given key, only if the Entry is not
+   * in the cache and nobody is editing it. The check and the start of the edit are atomic: when
+   * several threads try to write the same Entry, one gets the editor and the others get an
+   * OptionalStream.absent() instead of an IllegalStateException. Otherwise behaves like
+   * {@link #edit(String)}.
+   * @throws IllegalArgumentException if key is not valid.
+   */
+  public OptionalStream<EditorOutputStream> editIfAbsent(String key) {
+    return editIfVersion(key, Entry.NO_VERSION);
+  }
+
+  /**
+   * Get the {@link EditorOutputStream} of the Entry with the given key, only if the Entry is at
+   * the expected version (see {@link #getVersion(String)}) and nobody is editing it. The check and
+   * the start of the edit are atomic, so an Entry that got replaced since the caller read it is
+   * not overwritten. Otherwise an OptionalStream.absent() will be returned, like
+   * {@link #edit(String)} does when the Entry is not available for editing.
+   * @param expectedVersion the version of the Entry, or 0 for an Entry that is not in the cache.
+   * @throws IllegalArgumentException if key is not valid.
+   */
+  public OptionalStream<EditorOutputStream> editIfVersion(String key, long expectedVersion) {
+    validateKey(key);
+    if (expectedVersion < Entry.NO_VERSION) {
+      throw new IllegalArgumentException("Invalid version: " + expectedVersion);
+    }
+    return editEntry(key, 0, null, expectedVersion);
+  }
+
+  /**
+   * Get the version of the Entry with the given key, or 0 if it is not in the cache. Every commit
+   * gives the Entry a new version, taken from a counter shared by all the entries of the cache
+   * that only ever increases, so an Entry that gets removed or evicted and then added again
+   * doesn't get one of its old versions back.
+   * @throws IllegalArgumentException if key is not valid.
+   */
+  public long getVersion(String key) {
+    validateKey(key);
+    Entry entry;
+    synchronized (mDiskCacheLock) {
+      entry = getEntryLocked(key);
+    }
+    return entry != null ? getPublishedVersion(entry) : Entry.NO_VERSION;
+  }
+
+  /**
+   * Get the {@link EditorOutputStream} of the Entry with the given key, like
+   * {@link #edit(String)}, and publish the given metadata with the Entry when the edit is
+   * committed. The metadata is kept in memory and in the journal, and can be read with
+   * {@link #getMetadata(String)} without opening the Entry data. An edit without metadata clears
+   * the metadata of the Entry.
+   * @param metadata small blob describing the entry (e.g. an ETag, a content type or an expiry),
+   * at most {@link #MAX_METADATA_SIZE_IN_BYTES} bytes.
+   * @throws IllegalArgumentException if key is not valid, or metadata is too large.
+   * @throws IllegalStateException if require edit on an entry that is currently under edit.
+   */
+  public OptionalStream<EditorOutputStream> edit(String key, byte[] metadata) {
+    validateKey(key);
+    if (metadata.length > MAX_METADATA_SIZE_IN_BYTES) {
+      throw new IllegalArgumentException("Metadata is too large: " + metadata.length + " bytes");
+    }
+    return editEntry(key, 0, metadata.length > 0 ? metadata.clone() : null, ANY_VERSION);
+  }
+
+  /**
+   * Get an {@link EditorOutputStream} of the Entry with the given key that doesn't hold the Entry
+   * while it is written. Several threads can write the same Entry at the same time, each to a
+   * temporary file of its own, for example when concurrent loads miss on the same key; the Entry
+   * is only taken for the commit, and the last commit wins. A commit that comes while another
+   * edit of the Entry is in progress is discarded and returns false, since the other edit replaces
+   * it anyway. Nothing is reserved for the edit, see {@link #edit(String, long)}.
+   * If the cache is a stub instance or the file system is not accessible, an
+   * OptionalStream.absent() will be returned.
+   * @throws IllegalArgumentException if key is not valid.
+   */
+  public OptionalStream<EditorOutputStream> editConcurrently(String key) {
+    validateKey(key);
+    if (!canStartEdit()) {
+      return OptionalStream.absent();
+    }
+    MissRatioCurveEstimator estimator = mMissRatioCurveEstimator;
+    if (estimator != null) {
+      estimator.recordEdit(key);
+    }
+    // The Entry is looked up on commit, it might be replaced or removed in the meantime.
+    Entry entry = new Entry(mDirectory, key);
+    EditorOutputStream outputStream = createOutputStream(
+            entry,
+            entry.getConcurrentDirtyFile(mConcurrentEditIds.incrementAndGet()),
+            true,
+            mMaxPackedEntrySizeInBytes,
+            mChunkSizeInBytes,
+            mIsDeduplicationEnabled,
+            mIsCompressionEnabled,
+            mValueCount,
+            null);
+    if (outputStream == null) {
+      return OptionalStream.absent();
+    }
+    return OptionalStream.of(outputStream);
+  }
+
+  /**
+   * Write the value as the Entry with the given key and commit it, without going through a stream.
+   * The position of the value buffer is not changed.
+   * @return true if the value got committed.
+   * @throws IllegalArgumentException if key is not valid.
+   * @throws IllegalStateException if the entry is currently under edit.
+   */
+  public boolean put(String key, ByteBuffer value) {
+    WriteBehindQueue writeBehindQueue = mWriteBehindQueue;
+    if (writeBehindQueue != null) {
+      byte[] bytes = new byte[value.remaining()];
+      value.duplicate().get(bytes);
+      return putWriteBehind(writeBehindQueue, key, bytes);
+    }
+    OptionalStream<EditorOutputStream> output = edit(key, value.remaining());
+    if (!output.isPresent()) {
+      return false;
+    }
+    EditorOutputStream out = output.get();
+    try {
+      if (value.hasArray()) {
+        out.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+      } else {
+        ByteBuffer source = value.duplicate();
+        byte[] buffer = new byte[Math.min(source.remaining(), COPY_BUFFER_SIZE)];
+        while (source.hasRemaining()) {
+          int count = Math.min(source.remaining(), buffer.length);
+          source.get(buffer, 0, count);
+          out.write(buffer, 0, count);
+        }
+      }
+      return out.commit();
+    } finally {
+      out.abortUnlessCommitted();
+    }
+  }
+
+  /**
+   * Write the value as the Entry with the given key and commit it, see
+   * {@link #put(String, ByteBuffer)}.
+   */
+  public boolean put(String key, byte[] value) {
+    WriteBehindQueue writeBehindQueue = mWriteBehindQueue;
+    if (writeBehindQueue != null) {
+      return putWriteBehind(writeBehindQueue, key, value);
+    }
+    return put(key, ByteBuffer.wrap(value));
+  }
+
+  private boolean putWriteBehind(WriteBehindQueue writeBehindQueue, String key, byte[] value) {
+    validateKey(key);
+    if (isStubCache() || value.length > getMaxEntrySizeInBytes()) {
+      return false;
+    }
+    return writeBehindQueue.put(key, value);
+  }
+
+  /**
+   * Write a value taken from the write-behind queue. The write doesn't hold the Entry, so that
+   * it never fails because of another edit, see {@link #editConcurrently(String)}.
+   */
+  /* package */ void writeQueuedValue(String key, byte[] value) {
+    OptionalStream<EditorOutputStream> output = editConcurrently(key);
+    if (output.isPresent()) {
+      EditorOutputStream out = output.get();
+      try {
+        out.write(value);
+        out.commit();
+      } finally {
+        out.abortUnlessCommitted();
+      }
+    }
+  }
+
+  private byte[] getQueuedValue(String key) {
+    WriteBehindQueue writeBehindQueue = mWriteBehindQueue;
+    return writeBehindQueue != null ? writeBehindQueue.get(key) : null;
+  }
+
+  /**
+   * Move an existing file into the cache as the Entry with the given key and commit it. A file on
+   * the same file system as the cache is renamed, nothing is copied; otherwise it is copied in the
+   * kernel with {@link FileChannel#transferFrom} and deleted. The Entry is stored as a file of its
+   * own, without compression or checksum.
+   * @return true if the file got committed. Otherwise the file might have been deleted.
+   * @throws IllegalArgumentException if key is not valid.
+   * @throws IllegalStateException if the entry is currently under edit.
+   */
+  public boolean putFile(String key, File file) {
+    long length = file.length();
+    if (!file.isFile()) {
+      return false;
+    }
+    OptionalStream<EditorOutputStream> output = edit(key, length);
+    if (!output.isPresent()) {
+      return false;
+    }
+    EditorOutputStream out = output.get();
+    try {
+      if (out.adoptFile(file, length)) {
+        return out.commit();
+      }
+      FileInputStream in = new FileInputStream(file);
+      try {
+        out.transferFrom(in.getChannel(), length);
+      } finally {
+        Journal.closeQuietly(in);
+      }
+      if (out.commit()) {
+        file.delete(); // The file is in the cache now. Ignore the return.
+        return true;
+      }
+      return false;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      out.abortUnlessCommitted();
+    }
+  }
+
+  /**
+   * Transfer length bytes from the source channel as the Entry with the given key and commit it.
+   * The bytes are copied with {@link FileChannel#transferFrom}, in the kernel when the source is a
+   * file. The Entry is stored as a file of its own, without compression or checksum.
+   * @param source blocking channel, read from its current position.
+   * @return true if the Entry got committed, false if it couldn't be written or the source ended
+   * before length bytes.
+   * @throws IllegalArgumentException if key is not valid, or length is negative.
+   * @throws IllegalStateException if the entry is currently under edit.
+   */
+  public boolean put(String key, ReadableByteChannel source, long length) {
+    if (length < 0) {
+      throw new IllegalArgumentException("Negative length: " + length);
+    }
+    OptionalStream<EditorOutputStream> output = edit(key, length);
+    if (!output.isPresent()) {
+      return false;
+    }
+    EditorOutputStream out = output.get();
+    try {
+      out.transferFrom(source, length);
+      return out.commit();
+    } catch (IOException e) {
+      return false;
+    } finally {
+      out.abortUnlessCommitted();
+    }
+  }
+
+  /**
+   * Start a {@link Transaction}, to publish the edits of several entries all or nothing.
+   */
+  public Transaction beginTransaction() {
+    return new Transaction(this);
+  }
+
+  /**
+   * Get the metadata published with the Entry with the given key, see
+   * {@link #edit(String, byte[])}. This does not open the Entry data. If the Entry doesn't exist
+   * or has no metadata, an OptionalStream.absent() will be returned.
+   * @throws IllegalArgumentException if key is not valid.
+   */
+  public OptionalStream<byte[]> getMetadata(String key) {
+    validateKey(key);
+    Entry entry;
+    synchronized (mDiskCacheLock) {
+      entry = getEntryLocked(key);
+    }
+    byte[] metadata = entry != null && entry.isReadable() ? entry.getMetadata() : null;
+    if (metadata == null) {
+      return OptionalStream.absent();
+    }
+    return OptionalStream.of(metadata.clone());
+  }
+
+  /**
+   * Get the {@link EditorOutputStream} of the Entry with the given key, and reserve space in the
+   * cache for the expected size of the entry. If needed, entries are evicted before this method
+   * returns so that the cache stays within its size limit while the entry is written. The
+   * reservation is released when the edit is committed or aborted.
+   * If the expected size is larger than {@link #getMaxEntrySizeInBytes()}, the Entry doesn't
+   * exist or the file system is not accessible, an OptionalStream.absent() will be returned.
+   * @param expectedBytes expected size of the entry (in bytes).
+   * @throws IllegalArgumentException if key is not valid.
+   * @throws IllegalStateException if require edit on an entry that is currently under edit.
+   */
+  public OptionalStream<EditorOutputStream> edit(String key, long expectedBytes) {
+    validateKey(key);
+    if (expectedBytes > getMaxEntrySizeInBytes()) {
+      return OptionalStream.absent();
+    }
+    return editEntry(key, expectedBytes, null, ANY_VERSION);
+  }
+
+  /**
+   * @param expectedVersion the version the Entry must be at for the edit to start, or
+   * {@link #ANY_VERSION} for an unconditional edit.
+   */
+  private OptionalStream<EditorOutputStream> editEntry(
+          String key,
+          long expectedBytes,
+          byte[] metadata,
+          long expectedVersion) {
+    if (!canStartEdit()) {
+      return OptionalStream.absent();
+    } else {
+      WriteBehindQueue writeBehindQueue = mWriteBehindQueue;
+      if (writeBehindQueue != null) {
+        // The queued value must not land after this edit.
+        writeBehindQueue.writeNow(key);
+      }
+      Entry entry;
+      synchronized (mDiskCacheLock) {
+        entry = getEntryLocked(key);
+      }
+      if (expectedVersion != ANY_VERSION && !isEditableAtVersion(entry, expectedVersion)) {
+        return OptionalStream.absent();
+      } else if (entry == null) {
+        synchronized (mDiskCacheLock) {
+          // Another thread might have added the Entry since it was looked up.
+          entry = getEntryLocked(key);
+          if (entry == null) {
+            entry = new Entry(mDirectory, key);
+            putEntryLocked(entry);
+          }
+        }
+      } else if (entry.getCurrentEditorStream() != null) {
+        throw new IllegalStateException(
+                "Trying to edit a disk cache entry while another edit is in progress.");
+      }
+      MissRatioCurveEstimator estimator = mMissRatioCurveEstimator;
+      if (estimator != null) {
+        estimator.recordEdit(key);
+      }
+      mJournal.logDirtyFileUpdate(key);
+      // Entries expected to be too large to be packed are written to their own file right away.
+      int maxPackedSizeInBytes = mMaxPackedEntrySizeInBytes;
+      OptionalStream<EditorOutputStream> outputStream = getOutputStream(
+              entry,
+              expectedBytes > maxPackedSizeInBytes ? 0 : maxPackedSizeInBytes,
+              mChunkSizeInBytes,
+              mIsDeduplicationEnabled,
+              mIsCompressionEnabled,
+              mValueCount,
+              metadata,
+              expectedVersion);
+      if (!outputStream.isPresent() && entry.isReadable()) {
+        // Don't leave the Entry marked as dirty in the journal.
+        mJournal.logCleanFileUpdate(entry);
+      }
+      if (outputStream.isPresent() && expectedBytes > 0) {
+        outputStream.get().setExpectedBytes(expectedBytes);
+        // The old value is still counted in the cache size until the new one replaces it.
+        long reservedBytes = Math.max(0, expectedBytes - entry.getLengthInBytes());
+        entry.setReservedBytes(reservedBytes);
+        mReservedBytes.getAndAdd(reservedBytes);
+        if (reservedBytes > 0 && isOverLimits()) {
+          // Make room before the entry gets written rather than after it got committed.
+          trimToSizeAndCount();
+        }
+      }
+      return outputStream;
+    }
+  }
+
+  private boolean canStartEdit() {
+    FreeSpaceMonitor freeSpaceMonitor = mFreeSpaceMonitor;
+    if (isStubCache()) {
+      return false;
+    } else if (freeSpaceMonitor != null && freeSpaceMonitor.isLowOnSpace()) {
+      // The device is nearly full, don't start writes that are likely to fail.
+      if (freeSpaceMonitor.isCheckDue()) {
+        DISK_CACHE_EXECUTOR.execute(mFreeSpaceCheckRunnable);
+      }
+      return false;
+    }
+    return true;
+  }
+
+  private static boolean isEditableAtVersion(Entry entry, long expectedVersion) {
+    if (entry == null) {
+      return expectedVersion == Entry.NO_VERSION;
+    }
+    return entry.getCurrentEditorStream() == null && getPublishedVersion(entry) == expectedVersion;
+  }
+
+  private static long getPublishedVersion(Entry entry) {
+    return entry.isReadable() ? entry.getVersion() : Entry.NO_VERSION;
+  }
+
+  private synchronized OptionalStream<EditorOutputStream> getOutputStream(
+          Entry entry,
+          int maxPackedSizeInBytes,
+          int chunkSizeInBytes,
+          boolean isDeduplicating,
+          boolean isCompressing,
+          int valueCount,
+          byte[] metadata,
+          long expectedVersion) {
+    if (expectedVersion != ANY_VERSION) {
+      if (!isEditableAtVersion(entry, expectedVersion)) {
+        return OptionalStream.absent();
+      }
+    } else if (entry.getCurrentEditorStream() != null) {
+      throw new IllegalStateException(
+              "Trying to edit a disk cache entry while another edit is in progress.");
+    }
+    EditorOutputStream outputStream = createOutputStream(
+            entry,
+            entry.getDirtyFile(),
+            false,
+            maxPackedSizeInBytes,
+            chunkSizeInBytes,
+            isDeduplicating,
+            isCompressing,
+            valueCount,
+            metadata);
+    if (outputStream == null) {
+      return OptionalStream.absent();
+    }
+    entry.setCurrentEditorStream(outputStream);
+    return OptionalStream.of(outputStream);
+  }
+
+  /**
+   * @return null if the dirty file can't be created.
+   */
+  private EditorOutputStream createOutputStream(
+          Entry entry,
+          File dirtyFile,
+          boolean isConcurrent,
+          int maxPackedSizeInBytes,
+          int chunkSizeInBytes,
+          boolean isDeduplicating,
+          boolean isCompressing,
+          int valueCount,
+          byte[] metadata) {
+    try {
+      return new EditorOutputStream(
+              entry,
+              dirtyFile,
+              isConcurrent,
+              this,
+              maxPackedSizeInBytes,
+              chunkSizeInBytes,
+              isDeduplicating,
+              isCompressing,
+              valueCount,
+              metadata);
+    } catch (FileNotFoundException e) {
+      // Attempt to recreate the cache directory, no need to handle the mkdirs return result.
+      mDirectory.mkdirs();
+      try {
+        return new EditorOutputStream(
+                entry,
+                dirtyFile,
+                isConcurrent,
+                this,
+                maxPackedSizeInBytes,
+                chunkSizeInBytes,
+                isDeduplicating,
+                isCompressing,
+                valueCount,
+                metadata);
+      } catch (FileNotFoundException e2) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Make a concurrent editor (see {@link #editConcurrently}) the editor of the current Entry of
+   * its key, so that it can publish like any other editor.
+   * @return the Entry, or null if another edit of the Entry is in progress.
+   */
+  /* package */ Entry takeEntryForConcurrentCommit(String key, EditorOutputStream outputStream) {
+    Entry entry;
+    synchronized (mDiskCacheLock) {
+      entry = getEntryLocked(key);
+      if (entry == null) {
+        entry = new Entry(mDirectory, key);
+        putEntryLocked(entry);
+      }
+    }
+    if (!setEditorIfNone(entry, outputStream)) {
+      return null;
+    }
+    mJournal.logDirtyFileUpdate(key);
+    return entry;
+  }
+
+  private synchronized boolean setEditorIfNone(Entry entry, EditorOutputStream outputStream) {
+    if (entry.getCurrentEditorStream() != null) {
+      return false;
+    }
+    entry.setCurrentEditorStream(outputStream);
+    return true;
+  }
+
+  /**
+   * Record that the value of the given key is known not to exist (e.g. the server returned a 404),
+   * replacing the current value if there is one. Until the tombstone expires, {@link #get} returns
+   * OptionalStream.knownAbsent() and {@link #isKnownAbsent} returns true for the key. Tombstones
+   * are kept in the journal and in memory only. Editing the entry replaces the tombstone.
+   * @param ttlMillis time to live of the tombstone, in milliseconds.
+   * @throws IllegalArgumentException if key is not valid.
+   * @throws IllegalStateException if the entry is currently under edit.
+   */
+  public void putTombstone(String key, long ttlMillis) {
+    validateKey(key);
+    if (isStubCache()) {
+      return;
+    }
+    remove(key);
+    long expiryMillis = System.currentTimeMillis() + ttlMillis;
+    Entry entry = new Entry(mDirectory, key);
+    entry.markAsTombstone(expiryMillis);
+    synchronized (mDiskCacheLock) {
+      putEntryLocked(entry);
+    }
+    mJournal.logTombstone(key, expiryMillis);
+    if (isOverLimits()) {
+      DISK_CACHE_EXECUTOR.execute(mTrimRunnable);
+    }
+  }
+
+  /**
+   * Remove the Entry with the given key from cache.
+   * If the Entry is still under edit, EditorOutputStream need to be committed/aborted before
+   * removing.
+   * @throws IllegalArgumentException if key is not valid.
+   * @throws IllegalStateException if the Entry is under edit, in which case it is kept.
+   */
+  public void remove(String key) throws IllegalStateException {
+    validateKey(key);
+    WriteBehindQueue writeBehindQueue = mWriteBehindQueue;
+    if (writeBehindQueue != null) {
+      writeBehindQueue.discard(key);
+    }
+    removeEntry(key);
+  }
+
+  /**
+   * Remove the Entry with the given key, leaving a value queued for it in write-behind mode.
+   */
+  /* package */ void removeEntry(String key) throws IllegalStateException {
+    Entry entry;
+    synchronized (mDiskCacheLock) {
+      entry = mLruEntries.get(key);
+      if (entry != null && entry.getCurrentEditorStream() != null) {
+        // Keep the Entry, its editor publishes to it.
+        throw new IllegalStateException(
+                "trying to remove a disk cache entry that is still under edit.");
+      }
+      removeEntryLocked(key);
+    }
+    if (entry != null) {
+      mJournal.logRemove(key);
+      if (entry.isPacked() || entry.isChunked()) {
+        String[] chunkHashes;
+        long ownedLength;
+        synchronized (mDiskCacheLock) {
+          chunkHashes = entry.getChunkHashes();
+          ownedLength = getOwnedLengthInBytes(entry);
+          releaseSegmentLocked(entry);
+          entry.markAsRemoved();
+        }
+        mChunkStore.release(chunkHashes);
+        adjustSize(entry, -entry.getLengthInBytes(), -ownedLength);
+        return;
+      }
+      File file = entry.getCleanFile();
+      mOpenFileCache.invalidate(file);
+      if (!file.exists() || mFilePins.delete(file)) {
+        adjustSize(entry, -entry.getLengthInBytes());
+      } else {
+        synchronized (mRemoveRetryLock) {
+          mRemoveRetryList.add(entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Instantly trim the cache to size and count, and rebuild the cache journal if trim happens.
+   */
+  public void flush() {
+    trimToSizeAndCount();
+    mJournal.rebuildIfNeeded();
+  }
+
+  /**
+   * Close IgDiskCache and make sure the journal is updated on close. This could only be called from
+   * non-UI thread.
+   */
+  public void close() {
+    assertOnNonUIThread();
+    WriteBehindQueue writeBehindQueue = mWriteBehindQueue;
+    if (writeBehindQueue != null) {
+      writeBehindQueue.writeAll();
+    }
+    trimToSizeAndCount();
+    mSegmentStore.close();
+    mOpenFileCache.clear();
+    mJournal.rebuild();
+  }
+
+  /**
+   * Get the directory of the current IgDiskCache, return null if it's a stub cache instance.
+   */
+  public File getDirectory() {
+    return FAKE_CACHE_DIRECTORY.equals(mDirectory) ? null : mDirectory;
+  }
+
+  /**
+   * Get the limit for the disk cache size (in bytes).
+   */
+  public long getMaxSizeInBytes() {
+    return mMaxSizeInBytes;
+  }
+
+  /**
+   * Get the limit for the number of entries that can be stored in the cache.
+   */
+  public int getMaxCount() {
+    return mMaxCount;
+  }
+
+  /**
+   * Set the limit for the disk cache size (in bytes).
+   */
+  public void setMaxSizeInBytes(long maxSizeInBytes) {
+    mMaxSizeInBytes = maxSizeInBytes;
+    DISK_CACHE_EXECUTOR.execute(mTrimRunnable);
+  }
+
+  /**
+   * Set the limit for the number of entries that can be stored in the cache.
+   */
+  public void setMaxCount(int maxCount) {
+    mMaxCount = maxCount;
+    DISK_CACHE_EXECUTOR.execute(mTrimRunnable);
+  }
+
+  /**
+   * Let the cache size follow the free space of the filesystem. The free space is checked
+   * periodically on the maintenance thread: the cache may grow into half of the free space left
+   * above reservedFreeSpaceInBytes, and is trimmed once the free space drops below it. While the
+   * free space is below reservedFreeSpaceInBytes, {@link #edit} returns OptionalStream.absent().
+   * The entry count limit is scaled along with the size limit.
+   * <p> This should not be called from the UI thread.
+   * @param minSizeInBytes lower bound of the size limit (in bytes).
+   * @param maxSizeInBytes upper bound of the size limit (in bytes), also set as the limit
+   * returned by {@link #getMaxSizeInBytes()}.
+   * @param reservedFreeSpaceInBytes free space the cache should leave to the rest of the device.
+   */
+  public void enableFreeSpaceTracking(
+          long minSizeInBytes,
+          long maxSizeInBytes,
+          long reservedFreeSpaceInBytes) {
+    FreeSpaceMonitor freeSpaceMonitor =
+            new FreeSpaceMonitor(mDirectory, minSizeInBytes, reservedFreeSpaceInBytes);
+    freeSpaceMonitor.update(size());
+    mMaxSizeInBytes = maxSizeInBytes;
+    mFreeSpaceMonitor = freeSpaceMonitor;
+    DISK_CACHE_EXECUTOR.execute(mTrimRunnable);
+  }
+
+  /**
+   * Switch {@link #put(String, byte[])} and {@link #put(String, ByteBuffer)} to write-behind: the
+   * value is queued and the call returns right away, while worker threads write the queued values
+   * to disk. Until it is written, a queued value is read from memory by {@link #has},
+   * {@link #get}, {@link #getBytes}, {@link #getInto} and the other reads of the key, except
+   * {@link #map} and the edits of the key, which write it first. The array passed to
+   * {@link #put(String, byte[])} is queued as is and must not be modified afterwards. Queued
+   * values are written by {@link #close()}, and are lost if the app dies before.
+   * @param maxQueuedBytes size of the queue (in bytes).
+   * @param workerCount number of threads writing the queued values.
+   * @param blockWhenFull true if put() should wait for room in a full queue, false if it should
+   * drop the value and return false, see {@link #getDroppedWriteCount()}.
+   * @throws IllegalStateException if write-behind is already enabled, call
+   * {@link #disableWriteBehind()} first.
+   */
+  public synchronized void enableWriteBehind(
+          long maxQueuedBytes,
+          int workerCount,
+          boolean blockWhenFull) {
+    if (mWriteBehindQueue != null) {
+      throw new IllegalStateException("Write-behind is already enabled.");
+    }
+    mWriteBehindQueue = new WriteBehindQueue(this, maxQueuedBytes, workerCount, blockWhenFull);
+  }
+
+  /**
+   * Write the queued values and switch put() back to writing in the calling thread. This should
+   * not be called from the UI thread.
+   */
+  public void disableWriteBehind() {
+    WriteBehindQueue writeBehindQueue;
+    synchronized (this) {
+      writeBehindQueue = mWriteBehindQueue;
+    }
+    if (writeBehindQueue == null) {
+      return;
+    }
+    // The queue stays in use until it is drained: reads still find the queued values, and edits
+    // and puts of a key still write its queued value first, so it can't land after them.
+    writeBehindQueue.drain();
+    synchronized (this) {
+      if (mWriteBehindQueue == writeBehindQueue) {
+        mWriteBehindQueue = null;
+      }
+    }
+  }
+
+  /**
+   * Get the number of values put in write-behind mode that got dropped because the queue was
+   * full, see {@link #enableWriteBehind}.
+   */
+  public long getDroppedWriteCount() {
+    WriteBehindQueue writeBehindQueue = mWriteBehindQueue;
+    return writeBehindQueue != null ? writeBehindQueue.getDroppedCount() : 0;
+  }
+
+  /**
+   * Stop following the free space of the filesystem, {@link #getMaxSizeInBytes()} becomes the
+   * size limit again.
+   */
+  public void disableFreeSpaceTracking() {
+    mFreeSpaceMonitor = null;
+    DISK_CACHE_EXECUTOR.execute(mTrimRunnable);
+  }
+
+  /**
+   * Get the size limit currently enforced (in bytes). This is {@link #getMaxSizeInBytes()},
+   * unless free space tracking is enabled and the filesystem is short on space.
+   */
+  public long getEffectiveMaxSizeInBytes() {
+    FreeSpaceMonitor freeSpaceMonitor = mFreeSpaceMonitor;
+    return freeSpaceMonitor == null
+            ? mMaxSizeInBytes
+            : freeSpaceMonitor.getSizeLimitInBytes(mMaxSizeInBytes);
+  }
+
+  /**
+   * Get the entry count limit currently enforced. This is {@link #getMaxCount()}, scaled down in
+   * proportion to the size limit when free space tracking is enabled.
+   */
+  public int getEffectiveMaxCount() {
+    long maxSizeInBytes = mMaxSizeInBytes;
+    if (mFreeSpaceMonitor == null || maxSizeInBytes <= 0) {
+      return mMaxCount;
+    }
+    double ratio = (double) getEffectiveMaxSizeInBytes() / maxSizeInBytes;
+    return Math.max(1, (int) (mMaxCount * ratio));
+  }
+
+  /**
+   * Start or stop estimating the hit rate the cache would have at other sizes. The estimate is
+   * built from a small hashed sample of the keys read through {@link #get} and written through
+   * {@link #edit}, and uses a bounded amount of memory. Stopping the estimation discards it.
+   */
+  public void setHitRateEstimationEnabled(boolean enabled) {
+    synchronized (mDiskCacheLock) {
+      if (!enabled) {
+        mMissRatioCurveEstimator = null;
+      } else if (mMissRatioCurveEstimator == null) {
+        mMissRatioCurveEstimator = new MissRatioCurveEstimator();
+      }
+    }
+  }
+
+  /**
+   * Get the estimated hit rate of the cache as a function of its size, built from the traffic
+   * seen since {@link #setHitRateEstimationEnabled} was called. This can be used to pick
+   * the cache size limit from real traffic.
+   * @return the estimated curve, or null if the estimation is not enabled.
+   */
+  public HitRateCurve getEstimatedHitRateCurve() {
+    MissRatioCurveEstimator estimator = mMissRatioCurveEstimator;
+    return estimator == null ? null : estimator.getHitRateCurve();
+  }
+
+  /**
+   * Set the size limit of a single entry (in bytes). Larger entries are rejected by
+   * {@link #edit(String, long)} when their expected size is known, or discarded on commit
+   * otherwise.
+   */
+  public void setMaxEntrySizeInBytes(long maxEntrySizeInBytes) {
+    mMaxEntrySizeInBytes = maxEntrySizeInBytes;
+  }
+
+  /**
+   * Get the size limit of a single entry (in bytes). An entry can't be larger than the cache
+   * itself, so this is never more than {@link #getEffectiveMaxSizeInBytes()}.
+   */
+  public long getMaxEntrySizeInBytes() {
+    return Math.min(mMaxEntrySizeInBytes, getEffectiveMaxSizeInBytes());
+  }
+
+  /**
+   * Set the size limit (in bytes) under which entries are packed together into shared segment
+   * files instead of getting a file of their own, 0 to disable packing. Packing saves the file
+   * creation, the rename and the inode of each small entry; the space left by removed packed
+   * entries is reclaimed by compacting their segments in the background.
+   */
+  public void setMaxPackedEntrySizeInBytes(int maxPackedEntrySizeInBytes) {
+    mMaxPackedEntrySizeInBytes = maxPackedEntrySizeInBytes;
+  }
+
+  /**
+   * Get the size limit (in bytes) under which entries are packed into shared segment files.
+   */
+  public int getMaxPackedEntrySizeInBytes() {
+    return mMaxPackedEntrySizeInBytes;
+  }
+
+  /**
+   * Set the chunk size (in bytes) of chunked storage, 0 to disable it. With chunked storage,
+   * entries larger than one chunk are stored as a list of chunks: each chunk is stored as soon as
+   * it is written, identical chunks are stored once, and under space pressure the cache evicts
+   * the tail chunks of an entry before the whole entry. A snapshot of an entry whose tail got
+   * evicted is shorter than the original value, see {@link SnapshotInputStream#isComplete()}.
+   */
+  public void setChunkSizeInBytes(int chunkSizeInBytes) {
+    mChunkSizeInBytes = chunkSizeInBytes;
+  }
+
+  /**
+   * Get the chunk size (in bytes) of chunked storage, 0 if it is disabled.
+   */
+  public int getChunkSizeInBytes() {
+    return mChunkSizeInBytes;
+  }
+
+  /**
+   * Enable or disable the deduplication of identical entries. When enabled, the content of the
+   * entries that are not packed (see {@link #setMaxPackedEntrySizeInBytes(int)}) is hashed while
+   * it is written and stored once under its hash, each key pointing to the shared copy: byte
+   * identical entries only cost their index entry. The size of the cache counts the shared copy
+   * once, the size of the cache partitions still counts the length of each entry.
+   */
+  public void setDeduplicationEnabled(boolean enabled) {
+    mIsDeduplicationEnabled = enabled;
+  }
+
+  /**
+   * Check if the deduplication of identical entries is enabled.
+   */
+  public boolean isDeduplicationEnabled() {
+    return mIsDeduplicationEnabled;
+  }
+
+  /**
+   * Enable or disable the transparent compression of new entries. When enabled, the first bytes
+   * written to an entry are used as a sample to decide if the entry compresses well, in which case
+   * the entry gets deflated as it is written and inflated as it is read. The size of the cache,
+   * and the size limits, count the compressed size of the entries.
+   * <p> Compressed entries can only be read as streams: {@link #getRandomAccess(String)} and
+   * {@link #map(String)} treat them as absent.
+   */
+  public void setCompressionEnabled(boolean enabled) {
+    mIsCompressionEnabled = enabled;
+  }
+
+  /**
+   * Check if the compression of new entries is enabled.
+   */
+  public boolean isCompressionEnabled() {
+    return mIsCompressionEnabled;
+  }
+
+  /**
+   * Set the number of values held by the new entries, 1 by default. The values of an Entry are
+   * written through one {@link EditorOutputStream}, see {@link EditorOutputStream#nextValue()},
+   * and committed together; each value can be read on its own with
+   * {@link #getValue(String, int)}, while {@link #get(String)} reads the first value.
+   * @throws IllegalArgumentException if valueCount is less than 1.
+   */
+  public void setValueCount(int valueCount) {
+    if (valueCount < 1) {
+      throw new IllegalArgumentException("Invalid value count: " + valueCount);
+    }
+    mValueCount = valueCount;
+  }
+
+  /**
+   * Get the number of values held by the new entries.
+   */
+  public int getValueCount() {
+    return mValueCount;
+  }
+
+  /**
+   * Set the number of recently read files that are kept open, 0 (the default) to disable it.
+   * Reading a hot entry again then reuses the open file instead of opening and closing it, the
+   * open files are shared by all the readers through positional reads.
+   */
+  public void setMaxOpenFiles(int maxOpenFiles) {
+    mOpenFileCache.setMaxSize(maxOpenFiles);
+  }
+
+  /**
+   * Get the space currently reserved for entries under edit (in bytes).
+   */
+  public long getReservedSizeInBytes() {
+    return mReservedBytes.get();
+  }
+
+  /**
+   * Get disk cache's current size in bytes. Chunks shared by several entries are counted once.
+   */
+  public long size() {
+    return mSizeInBytes.get() + mChunkStore.getSizeInBytes();
+  }
+
+  /**
+   * Get disk cache's entry count.
+   */
+  public int count() {
+    synchronized (mDiskCacheLock) {
+      return mLruEntries.size();
+    }
+  }
+
+  /**
+   * Get the disk cache's hit rate in the from of a String:
+   * <strong>IgDiskCache[mMaxSizeInBytes=...,hits=...,misses=...,hitRate=...%]</strong>
+   */
+  public final String getHitRateString() {
+    int accesses = mHitCount + mMissCount;
+    int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+    return String.format(
+            Locale.US,
+            "IgDiskCache[mMaxSizeInBytes=%d,hits=%d,misses=%d,hitRate=%d%%]",
+            mMaxSizeInBytes,
+            mHitCount,
+            mMissCount,
+            hitPercent);
+  }
+
+  private void removeFilesForRemoveRetryList() {
+    synchronized (mRemoveRetryLock) {
+      Iterator<Entry> iterator = mRemoveRetryList.listIterator();
+      while (iterator.hasNext()) {
+        Entry entry = iterator.next();
+        if (entry != null) {
+          File file = entry.getCleanFile();
+          mOpenFileCache.invalidate(file);
+          if (file.exists() && file.delete()) {
+            adjustSize(entry, -entry.getLengthInBytes());
+            iterator.remove();
+          }
+        }
+      }
+    }
+  }
+
+  private void trimToSizeAndCount() {
+    removeFilesForRemoveRetryList();
+    synchronized (mDiskCacheLock) {
+      while (isOverLimits()) {
+        Entry toEvict = nextEvictionCandidateLocked();
+        if (toEvict == null) {
+          break;
+        }
+        if (isOverSizeLimit() && toEvict.isChunked() && toEvict.getChunkHashes().length > 1 &&
+                !toEvict.isCompressed() && toEvict.getCurrentEditorStream() == null) {
+          // Evict a large entry from its tail, the beginning of the data stays readable. This
+          // only helps when the cache is over its size, over its count the entry is removed.
+          long oldLength = toEvict.getLengthInBytes();
+          mChunkStore.release(toEvict.truncateLastChunk());
+          adjustSize(toEvict, toEvict.getLengthInBytes() - oldLength, 0);
+          mJournal.logCleanFileUpdate(toEvict);
+          continue;
+        }
+        try {
+          removeEntry(toEvict.getKey());
+        } catch (IllegalStateException ignored) {
+          // The Entry got an editor since it was picked, it is skipped from now on.
+        }
+      }
+    }
+  }
+
+  /**
+   * Pick the next entry to evict: the least recently used entry of the partition that is the
+   * furthest over its quota, then the least recently used entry outside of any partition, then
+   * the globally least recently used entry. Entries under edit are never picked, their editors
+   * publish to them.
+   */
+  private Entry nextEvictionCandidateLocked() {
+    CachePartition overQuota = null;
+    Entry overQuotaEntry = null;
+    for (CachePartition partition : mPartitions.values()) {
+      if (partition.isOverQuota() &&
+              (overQuota == null || partition.getQuotaOverage() > overQuota.getQuotaOverage())) {
+        Entry eldest = partition.eldestNotUnderEdit();
+        if (eldest != null) {
+          overQuota = partition;
+          overQuotaEntry = eldest;
+        }
+      }
+    }
+    if (overQuotaEntry != null) {
+      return overQuotaEntry;
+    }
+    Entry entry = mDefaultPartition.eldestNotUnderEdit();
+    if (entry == null) {
+      for (Entry candidate : mLruEntries.values()) {
+        if (candidate.getCurrentEditorStream() == null) {
+          return candidate;
+        }
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Move the live entries out of the segments that are mostly dead space, so that the segment
+   * files can be deleted. Runs on the maintenance thread.
+   */
+  private void compactSegments() {
+    for (int segmentId : mSegmentStore.getSegmentsToCompact()) {
+      List<Entry> entries = new ArrayList<>();
+      synchronized (mDiskCacheLock) {
+        for (Entry entry : mLruEntries.values()) {
+          if (entry.getSegmentId() == segmentId) {
+            entries.add(entry);
+          }
+        }
+      }
+      for (Entry entry : entries) {
+        long offset;
+        int length;
+        synchronized (entry) {
+          if (entry.getSegmentId() != segmentId) {
+            continue;
+          }
+          offset = entry.getSegmentOffset();
+          length = (int) entry.getLengthInBytes();
+        }
+        SegmentStore.Location location;
+        try {
+          location = mSegmentStore.append(mSegmentStore.read(segmentId, offset, length), length);
+        } catch (IOException e) {
+          return; // Try again on the next compaction.
+        }
+        synchronized (mDiskCacheLock) {
+          // The entry might have been updated or removed in the meantime.
+          if (entry.getSegmentId() == segmentId && entry.getSegmentOffset() == offset) {
+            entry.setSegmentLocation(location.mSegmentId, location.mOffset);
+            mSegmentStore.release(segmentId, length);
+            mJournal.logCleanFileUpdate(entry);
+          } else {
+            mSegmentStore.release(location.mSegmentId, length);
+          }
+        }
+      }
+    }
+  }
+
+  private File getDataFile(Entry entry) {
+    String[] chunkHashes = entry.getChunkHashes();
+    if (chunkHashes != null) {
+      return mChunkStore.getChunkFile(chunkHashes[0]);
+    }
+    return entry.isPacked() ? entry.getSegmentFile() : entry.getCleanFile();
+  }
+
+  private void releaseSegmentLocked(Entry entry) {
+    if (entry.isPacked() && mSegmentStore.release(entry.getSegmentId(), entry.getLengthInBytes())) {
+      DISK_CACHE_EXECUTOR.execute(mCompactionRunnable);
+    }
+  }
+
+  private boolean isStubCache() {
+    return mMaxSizeInBytes == 0 || mMaxCount == 0 || FAKE_CACHE_DIRECTORY.equals(mDirectory);
+  }
+
+  /**
+   * Check if the entry is a tombstone that hasn't expired yet. Expired tombstones are dropped.
+   */
+  private boolean isLiveTombstone(Entry entry) {
+    if (!entry.isTombstone()) {
+      return false;
+    } else if (entry.getTombstoneExpiryMillis() > System.currentTimeMillis()) {
+      return true;
+    }
+    synchronized (mDiskCacheLock) {
+      if (mLruEntries.get(entry.getKey()) == entry) {
+        removeEntryLocked(entry.getKey());
+      }
+    }
+    return false;
+  }
+
+  private boolean isOverLimits() {
+    return isOverSizeLimit() || count() > getEffectiveMaxCount();
+  }
+
+  private boolean isOverSizeLimit() {
+    return size() + mReservedBytes.get() > getEffectiveMaxSizeInBytes();
+  }
+
+  private Entry getEntryLocked(String key) {
+    Entry entry = mLruEntries.get(key);
+    if (entry != null) {
+      entry.getPartition().touch(key);
+    }
+    return entry;
+  }
+
+  private void putEntryLocked(Entry entry) {
+    String key = entry.getKey();
+    CachePartition partition = mDefaultPartition;
+    int separator = key.indexOf(CachePartition.KEY_SEPARATOR);
+    if (separator >= 0 && mPartitions.containsKey(key.substring(0, separator))) {
+      partition = mPartitions.get(key.substring(0, separator));
+    }
+    mLruEntries.put(key, entry);
+    entry.setPartition(partition);
+    partition.put(entry);
+  }
+
+  private Entry removeEntryLocked(String key) {
+    Entry entry = mLruEntries.remove(key);
+    if (entry != null) {
+      entry.getPartition().remove(key);
+    }
+    return entry;
+  }
+
+  private void adjustSize(Entry entry, long delta) {
+    adjustSize(entry, delta, delta);
+  }
+
+  /**
+   * Adjust the size of the cache and of the entry's partition.
+   * @param delta change of the entry's length, counted by the partition.
+   * @param ownedDelta change of the bytes stored for the entry alone, see
+   * {@link #getOwnedLengthInBytes(Entry)}.
+   */
+  private void adjustSize(Entry entry, long delta, long ownedDelta) {
+    mSizeInBytes.getAndAdd(ownedDelta);
+    entry.getPartition().addSize(delta);
+  }
+
+  /**
+   * Get the bytes stored for the entry alone. The chunks of a chunked entry might be shared with
+   * other entries, the chunk store counts them.
+   */
+  private static long getOwnedLengthInBytes(Entry entry) {
+    synchronized (entry) {
+      return entry.isChunked() ? 0 : entry.getLengthInBytes();
+    }
+  }
+
+  private void validateKey(String key) {
+    int separator = key.indexOf(CachePartition.KEY_SEPARATOR);
+    Matcher matcher = LEGAL_KEY_PATTERN.matcher(separator < 0 ? key : key.substring(separator + 1));
+    if (!matcher.matches()) {
+      throw new IllegalArgumentException(
+              "keys must match regex " + STRING_KEY_PATTERN + ": \"" + key + "\"");
+    }
+    if (separator >= 0) {
+      synchronized (mDiskCacheLock) {
+        if (!mPartitions.containsKey(key.substring(0, separator))) {
+          throw new IllegalArgumentException("unknown cache partition: \"" + key + "\"");
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the edit got published.
+   */
+  /* package */ boolean commitEdit(
+          Entry entry,
+          File dirty,
+          long length,
+          long uncompressedLength,
+          long checksum,
+          long[] valueLengths,
+          byte[] metadata) {
+    if (!dirty.exists()) {
+      releaseReservation(entry);
+      entry.setCurrentEditorStream(null);
+      updateEntry(entry);
+      return false;
+    } else if (length > getMaxEntrySizeInBytes()) {
+      abortEdit(entry, dirty);
+      removeEntry(entry.getKey()); // Previous entry is stale.
+      return false;
+    } else {
+      File clean = entry.getCleanFile();
+      // The old value is replaced by the rename, views that map it keep reading it.
+      mFilePins.cancelDeletion(clean);
+      if (dirty.renameTo(clean)) {
+        // Readers must not get the replaced file from the open file cache anymore.
+        mOpenFileCache.invalidate(clean);
+        long oldLength;
+        long oldOwnedLength;
+        String[] oldChunkHashes;
+        synchronized (mDiskCacheLock) {
+          oldLength = entry.getLengthInBytes();
+          oldOwnedLength = getOwnedLengthInBytes(entry);
+          oldChunkHashes = entry.getChunkHashes();
+          releaseSegmentLocked(entry);
+          entry.markAsPublished(length, ++mLastVersion);
+          entry.setUncompressedLengthInBytes(uncompressedLength);
+          entry.setChecksum(checksum);
+          entry.setValueLengths(valueLengths);
+          entry.setMetadata(metadata);
+        }
+        mChunkStore.release(oldChunkHashes);
+        onEditPublished(entry, oldLength, oldOwnedLength);
+        return true;
+      } else {
+        abortEdit(entry, dirty);
+        removeEntry(entry.getKey());
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Publish an edit small enough to be packed into a segment file.
+   * @return true if the edit got published.
+   */
+  /* package */ boolean commitPackedEdit(
+          Entry entry,
+          byte[] buffer,
+          int count,
+          long uncompressedLength,
+          long checksum,
+          long[] valueLengths,
+          byte[] metadata) {
+    SegmentStore.Location location = null;
+    if (count <= getMaxEntrySizeInBytes()) {
+      try {
+        location = mSegmentStore.append(buffer, count);
+      } catch (IOException e) {
+        // Handled below.
+      }
+    }
+    if (location == null) {
+      abortEdit(entry);
+      removeEntry(entry.getKey()); // Previous entry is stale.
+      return false;
+    }
+    long oldLength;
+    long oldOwnedLength;
+    String[] oldChunkHashes;
+    boolean hasCleanFile;
+    synchronized (mDiskCacheLock) {
+      oldLength = entry.getLengthInBytes();
+      oldOwnedLength = getOwnedLengthInBytes(entry);
+      oldChunkHashes = entry.getChunkHashes();
+      hasCleanFile = entry.isReadable() && !entry.isPacked() && !entry.isChunked();
+      releaseSegmentLocked(entry);
+      entry.markAsPublished(count, ++mLastVersion, location.mSegmentId, location.mOffset);
+      entry.setUncompressedLengthInBytes(uncompressedLength);
+      entry.setChecksum(checksum);
+      entry.setValueLengths(valueLengths);
+      entry.setMetadata(metadata);
+    }
+    mChunkStore.release(oldChunkHashes);
+    if (hasCleanFile) {
+      mFilePins.delete(entry.getCleanFile()); // No need to handle the fail case.
+    }
+    onEditPublished(entry, oldLength, oldOwnedLength);
+    return true;
+  }
+
+  /**
+   * Publish an edit whose data got stored as chunks.
+   * @return true if the edit got published.
+   */
+  /* package */ boolean commitChunkedEdit(
+          Entry entry,
+          long length,
+          int chunkSizeInBytes,
+          String[] chunkHashes,
+          long uncompressedLength,
+          long checksum,
+          long[] valueLengths,
+          byte[] metadata) {
+    if (length > getMaxEntrySizeInBytes()) {
+      mChunkStore.release(chunkHashes);
+      abortEdit(entry);
+      removeEntry(entry.getKey()); // Previous entry is stale.
+      return false;
+    }
+    long oldLength;
+    long oldOwnedLength;
+    String[] oldChunkHashes;
+    boolean hasCleanFile;
+    synchronized (mDiskCacheLock) {
+      oldLength = entry.getLengthInBytes();
+      oldOwnedLength = getOwnedLengthInBytes(entry);
+      oldChunkHashes = entry.getChunkHashes();
+      hasCleanFile = entry.isReadable() && !entry.isPacked() && !entry.isChunked();
+      releaseSegmentLocked(entry);
+      entry.markAsPublished(length, ++mLastVersion, chunkSizeInBytes, chunkHashes);
+      entry.setUncompressedLengthInBytes(uncompressedLength);
+      entry.setChecksum(checksum);
+      entry.setValueLengths(valueLengths);
+      entry.setMetadata(metadata);
+    }
+    mChunkStore.release(oldChunkHashes);
+    if (hasCleanFile) {
+      mFilePins.delete(entry.getCleanFile()); // No need to handle the fail case.
+    }
+    onEditPublished(entry, oldLength, oldOwnedLength);
+    return true;
+  }
+
+  /* package */ BufferPool getBufferPool() {
+    return mBufferPool;
+  }
+
+  /* package */ void storeChunk(File file, String hash) throws IOException {
+    mChunkStore.store(file, hash);
+  }
+
+  /* package */ void releaseChunks(String[] chunkHashes) {
+    mChunkStore.release(chunkHashes);
+  }
+
+  /**
+   * Stage a Transaction edit whose data is in a file of its own, see
+   * {@link #commitTransaction(List)}. The file is renamed to the clean file once all the edits of
+   * the Transaction are staged.
+   * @return false if the edit can't be published.
+   */
+  /* package */ boolean stageEdit(
+          Entry entry,
+          File dirty,
+          long length,
+          long uncompressedLength,
+          long checksum,
+          long[] valueLengths,
+          byte[] metadata,
+          List<StagedEdit> stagedEdits) {
+    if (!dirty.exists() || length > getMaxEntrySizeInBytes()) {
+      return false;
+    }
+    StagedEdit stagedEdit =
+            new StagedEdit(entry, length, uncompressedLength, checksum, valueLengths, metadata);
+    stagedEdit.mDirtyFile = dirty;
+    stagedEdits.add(stagedEdit);
+    return true;
+  }
+
+  /**
+   * Stage a Transaction edit small enough to be packed, by appending it to a segment file. The
+   * appended bytes are released if the Transaction fails.
+   * @return false if the edit can't be published.
+   */
+  /* package */ boolean stagePackedEdit(
+          Entry entry,
+          byte[] buffer,
+          int count,
+          long uncompressedLength,
+          long checksum,
+          long[] valueLengths,
+          byte[] metadata,
+          List<StagedEdit> stagedEdits) {
+    if (count > getMaxEntrySizeInBytes()) {
+      return false;
+    }
+    StagedEdit stagedEdit =
+            new StagedEdit(entry, count, uncompressedLength, checksum, valueLengths, metadata);
+    try {
+      stagedEdit.mLocation = mSegmentStore.append(buffer, count);
+    } catch (IOException e) {
+      return false;
+    }
+    stagedEdits.add(stagedEdit);
+    return true;
+  }
+
+  /**
+   * Stage a Transaction edit whose data got stored as chunks.
+   * @return false if the edit can't be published.
+   */
+  /* package */ boolean stageChunkedEdit(
+          Entry entry,
+          long length,
+          int chunkSizeInBytes,
+          String[] chunkHashes,
+          long uncompressedLength,
+          long checksum,
+          long[] valueLengths,
+          byte[] metadata,
+          List<StagedEdit> stagedEdits) {
+    if (length > getMaxEntrySizeInBytes()) {
+      return false;
+    }
+    StagedEdit stagedEdit =
+            new StagedEdit(entry, length, uncompressedLength, checksum, valueLengths, metadata);
+    stagedEdit.mChunkSizeInBytes = chunkSizeInBytes;
+    stagedEdit.mChunkHashes = chunkHashes;
+    stagedEdits.add(stagedEdit);
+    return true;
+  }
+
+  /**
+   * Publish the finished edits of a {@link Transaction}, all or nothing:
+   * <ul>
+   *   <li>the data of every edit is stored where it gets published from, see
+   *   {@link EditorOutputStream#prepareToPublish};</li>
+   *   <li>the files are renamed to their clean files, the replaced clean files being moved aside
+   *   until the end, so that they can be put back if a rename fails;</li>
+   *   <li>the entries are updated at once while holding the disk cache lock, so that readers and
+   *   journal rebuilds see them change together, and their CLEAN lines are logged as one group.
+   *   </li>
+   * </ul>
+   * If any step fails, the staged data is dropped and the entries keep their previous values.
+   * @return true if all the edits got published.
+   */
+  /* package */ boolean commitTransaction(List<EditorOutputStream> editors) {
+    List<StagedEdit> stagedEdits = new ArrayList<>(editors.size());
+    boolean isStaged = true;
+    for (EditorOutputStream editor : editors) {
+      if (!editor.prepareToPublish(stagedEdits)) {
+        isStaged = false;
+        break;
+      }
+    }
+    if (!isStaged || !moveStagedFiles(stagedEdits)) {
+      for (StagedEdit stagedEdit : stagedEdits) {
+        SegmentStore.Location location = stagedEdit.mLocation;
+        if (location != null && mSegmentStore.release(location.mSegmentId, stagedEdit.mLength)) {
+          DISK_CACHE_EXECUTOR.execute(mCompactionRunnable);
+        }
+      }
+      for (EditorOutputStream editor : editors) {
+        editor.discardIfStaged();
+      }
+      return false;
+    }
+    List<Entry> entries = new ArrayList<>(stagedEdits.size());
+    synchronized (mDiskCacheLock) {
+      for (StagedEdit stagedEdit : stagedEdits) {
+        publishLocked(stagedEdit);
+        entries.add(stagedEdit.mEntry);
+      }
+    }
+    for (StagedEdit stagedEdit : stagedEdits) {
+      Entry entry = stagedEdit.mEntry;
+      if (stagedEdit.mBackupFile != null) {
+        stagedEdit.mBackupFile.delete(); // No need to handle the fail case. Ignore the return.
+      }
+      mChunkStore.release(stagedEdit.mOldChunkHashes);
+      if (stagedEdit.mHasOldCleanFile) {
+        mFilePins.delete(entry.getCleanFile()); // No need to handle the fail case.
+      }
+      recordEditPublished(entry, stagedEdit.mOldLength, stagedEdit.mOldOwnedLength);
+    }
+    mJournal.logTransaction(entries);
+    scheduleMaintenanceIfNeeded();
+    CacheBudgetManager budgetManager = mBudgetManager;
+    if (budgetManager != null && budgetManager.onCommit()) {
+      DISK_CACHE_EXECUTOR.execute(mRebalanceRunnable);
+    }
+    return true;
+  }
+
+  /**
+   * Rename the files of the staged edits to their clean files. The clean files they replace are
+   * moved aside rather than overwritten.
+   * @return true if all the files got renamed, otherwise the clean files are put back.
+   */
+  private boolean moveStagedFiles(List<StagedEdit> stagedEdits) {
+    int moved = 0;
+    while (moved < stagedEdits.size() && moveStagedFile(stagedEdits.get(moved))) {
+      moved++;
+    }
+    if (moved == stagedEdits.size()) {
+      return true;
+    }
+    for (int i = 0; i < moved; i++) {
+      StagedEdit stagedEdit = stagedEdits.get(i);
+      if (stagedEdit.mDirtyFile != null) {
+        File clean = stagedEdit.mEntry.getCleanFile();
+        if (stagedEdit.mBackupFile != null) {
+          stagedEdit.mBackupFile.renameTo(clean); // Replaces the new data. Ignore the return.
+        } else {
+          clean.delete(); // No need to handle the fail case. Ignore the return.
+        }
+        mOpenFileCache.invalidate(clean);
+      }
+    }
+    return false;
+  }
+
+  private boolean moveStagedFile(StagedEdit stagedEdit) {
+    if (stagedEdit.mDirtyFile == null) {
+      return true;
+    }
+    File clean = stagedEdit.mEntry.getCleanFile();
+    mFilePins.cancelDeletion(clean);
+    if (clean.exists()) {
+      // Named like the files of concurrent editors, so that it gets deleted when the cache opens.
+      File backup = stagedEdit.mEntry.getConcurrentDirtyFile(mConcurrentEditIds.incrementAndGet());
+      if (!clean.renameTo(backup)) {
+        return false;
+      }
+      stagedEdit.mBackupFile = backup;
+    }
+    boolean isMoved = stagedEdit.mDirtyFile.renameTo(clean);
+    if (!isMoved && stagedEdit.mBackupFile != null) {
+      stagedEdit.mBackupFile.renameTo(clean); // Ignore the return.
+    }
+    mOpenFileCache.invalidate(clean);
+    return isMoved;
+  }
+
+  /**
+   * Update the Entry of a staged edit whose data is in place.
+   */
+  private void publishLocked(StagedEdit stagedEdit) {
+    Entry entry = stagedEdit.mEntry;
+    stagedEdit.mOldLength = entry.getLengthInBytes();
+    stagedEdit.mOldOwnedLength = getOwnedLengthInBytes(entry);
+    stagedEdit.mOldChunkHashes = entry.getChunkHashes();
+    stagedEdit.mHasOldCleanFile = stagedEdit.mDirtyFile == null && entry.isReadable() &&
+            !entry.isPacked() && !entry.isChunked();
+    releaseSegmentLocked(entry);
+    SegmentStore.Location location = stagedEdit.mLocation;
+    if (location != null) {
+      entry.markAsPublished(
+              stagedEdit.mLength, ++mLastVersion, location.mSegmentId, location.mOffset);
+    } else if (stagedEdit.mChunkHashes != null) {
+      entry.markAsPublished(stagedEdit.mLength, ++mLastVersion,
+              stagedEdit.mChunkSizeInBytes, stagedEdit.mChunkHashes);
+    } else {
+      entry.markAsPublished(stagedEdit.mLength, ++mLastVersion);
+    }
+    entry.setUncompressedLengthInBytes(stagedEdit.mUncompressedLength);
+    entry.setChecksum(stagedEdit.mChecksum);
+    entry.setValueLengths(stagedEdit.mValueLengths);
+    entry.setMetadata(stagedEdit.mMetadata);
+  }
+
+  private void onEditPublished(Entry entry, long oldLength, long oldOwnedLength) {
+    recordEditPublished(entry, oldLength, oldOwnedLength);
+    updateEntry(entry);
+    CacheBudgetManager budgetManager = mBudgetManager;
+    if (budgetManager != null && budgetManager.onCommit()) {
+      DISK_CACHE_EXECUTOR.execute(mRebalanceRunnable);
+    }
+  }
+
+  private void recordEditPublished(Entry entry, long oldLength, long oldOwnedLength) {
+    long newLength = entry.getLengthInBytes();
+    adjustSize(entry, newLength - oldLength, getOwnedLengthInBytes(entry) - oldOwnedLength);
+    releaseReservation(entry);
+    MissRatioCurveEstimator estimator = mMissRatioCurveEstimator;
+    if (estimator != null) {
+      estimator.recordSize(entry.getKey(), newLength);
+    }
+  }
+
+  /* package */ void abortEdit(Entry entry) {
+    abortEdit(entry, entry.getDirtyFile());
+  }
+
+  private void abortEdit(Entry entry, File dirty) {
+    releaseReservation(entry);
+    if (dirty.exists()) {
+      dirty.delete(); // No need to handle the fail case. Ignore the return.
+    }
+    entry.setCurrentEditorStream(null);
+    updateEntry(entry);
+  }
+
+  private void releaseReservation(Entry entry) {
+    mReservedBytes.getAndAdd(-entry.takeReservedBytes());
+  }
+
+  private void updateEntry(Entry entry) {
     if (entry.isReadable()) {
-      mJournal.logCleanFileUpdate(entry.getKey(), entry.getLengthInBytes());
+      mJournal.logCleanFileUpdate(entry);
+    } else if (isLiveTombstone(entry)) {
+      // An aborted edit of a tombstone: the DIRTY line of the edit would drop it on replay.
+      mJournal.logTombstone(entry.getKey(), entry.getTombstoneExpiryMillis());
     } else {
       synchronized (mDiskCacheLock) {
-        mLruEntries.remove(entry.getKey());
+        removeEntryLocked(entry.getKey());
       }
     }
-    if (mSizeInBytes.get() > mMaxSizeInBytes || count() > mMaxCount) {
+    scheduleMaintenanceIfNeeded();
+  }
+
+  private void scheduleMaintenanceIfNeeded() {
+    if (isOverLimits()) {
       DISK_CACHE_EXECUTOR.execute(mTrimRunnable);
     }
+    FreeSpaceMonitor freeSpaceMonitor = mFreeSpaceMonitor;
+    if (freeSpaceMonitor != null && freeSpaceMonitor.isCheckDue()) {
+      DISK_CACHE_EXECUTOR.execute(mFreeSpaceCheckRunnable);
+    }
+  }
+
+  /* package */ synchronized void setBudgetManager(CacheBudgetManager budgetManager) {
+    if (budgetManager != null && mBudgetManager != null) {
+      throw new IllegalStateException(
+              "This IgDiskCache is already registered with a CacheBudgetManager.");
+    }
+    mBudgetManager = budgetManager;
+  }
+
+  /* package */ int getHitCount() {
+    return mHitCount;
+  }
+
+  /* package */ int getMissCount() {
+    return mMissCount;
+  }
+
+  /**
+   * Get the last Entry version handed out, see {@link #getVersion(String)}.
+   */
+  /* package */ long getLastVersion() {
+    synchronized (mDiskCacheLock) {
+      return mLastVersion;
+    }
   }
 
   /* package */ ArrayList<Entry> getEntryCollection() {
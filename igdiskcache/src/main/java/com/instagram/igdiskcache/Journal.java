@@ -19,12 +19,15 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Writer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Executor;
 
@@ -33,22 +36,62 @@ import java.util.concurrent.Executor;
  * A typical journal file looks like this:
  *
  * <pre>
+ *    VERSION 1
  *    CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832
  *    DIRTY 335c4c6028171cfddfbaae1a9c313c52
- *    CLEAN 335c4c6028171cfddfbaae1a9c313c52 3934
+ *    CLEAN 335c4c6028171cfddfbaae1a9c313c52 3934 crc=8c736521
+ *    CLEAN 1f3870be274f6c49b3e31a0c6728957f 212 seg=3:40960
+ *    CLEAN 9a0364b9e99bb480dd25e1f0284c8555 1048576 chunks=1048576:0beec7b5ea3f0fdb total=1048600
+ *    CLEAN 7d1a54127b222502f5b79b5fb0803061 5120 deflated=23040
+ *    CLEAN 44b7f3a9c6ab49ef7e0b8c1d1f52a8f3 1496 values=1024,472
+ *    CLEAN 5c2e9f0a7b3d4c1e8f6a2b9d0c7e3f1a 2048 meta=2231613262220a
+ *    CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 840 version=2
  *    DIRTY 3400330d1dfc7f3f7f4b8d4d803dfcf6
+ *    DIRTY 6b2f0e9d4c1a3b5e7f8d9c0a1b2e3f4d
+ *    TXN 2
+ *    CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 912 version=3
+ *    CLEAN 6b2f0e9d4c1a3b5e7f8d9c0a1b2e3f4d 64
+ *    TOMBSTONE 8e2d1a5f3c0b4e6d9f7a2b1c0d3e4f5a 1462233600000
+ *    REMOVE 1f3870be274f6c49b3e31a0c6728957f
  * </pre>
  *
  * <p> Each line contains space-separated values: a state, a key, and a optional state-specific
- * value representing the length of the entry data in bytes.
+ * value. CLEAN lines may be followed by attributes of the form "name=value".
  *
  * <ul><li>
+ *   o VERSION lines give the last Entry version handed out by the cache, so that versions of
+ *     entries that got removed are not handed out again after the journal got rebuilt without
+ *     them. </li>
+ * <li>
  *   o DIRTY lines track that an entry is actively being created or updated. Every successful
  *     DIRTY action should be followed by a CLEAN action. DIRTY lines without a matching CLEAN
  *     indicate that temporary files may need to be deleted next time the cache got opened. </li>
  * <li>
+ *   o TXN lines start the CLEAN lines of the entries published by a {@link Transaction}, and
+ *     give the number of CLEAN lines that follow. The group is written at once; if the journal
+ *     ends before the '\n' of the last of these lines, none of them is applied, so the entries
+ *     are left dirty and get deleted. </li>
+ * <li>
  *   o CLEAN lines track a cache entry that has been successfully published, Entry key is followed
- *     by the lengths of the Entry data in bytes. </li>
+ *     by the lengths of the Entry data in bytes. The "seg" attribute tells that the Entry data is
+ *     packed at an offset of a segment file, see {@link SegmentStore}. The "chunks" attribute
+ *     gives the chunk size and the comma-separated hashes of the chunks holding the Entry data,
+ *     see {@link ChunkStore}, and "total" the length of the data before tail chunks got
+ *     evicted. The "deflated" attribute tells that the Entry data is compressed, and gives its
+ *     length before compression. The "crc" attribute gives the CRC32 of the Entry data as it is
+ *     stored, in hexadecimal. The "values" attribute gives the lengths of the values of an Entry
+ *     holding several values, stored one after the other. The "meta" attribute gives the
+ *     metadata published with the Entry, in hexadecimal. The "version" attribute gives the
+ *     version the Entry got published at, when it is not 1. Versions come from a counter shared
+ *     by all the entries of the cache, which resumes from the highest version in the journal
+ *     when the cache is reopened. </li>
+ * <li>
+ *   o TOMBSTONE lines track an entry that is known not to exist, Entry key is followed by the
+ *     time the tombstone expires, in milliseconds since the epoch. Tombstones have no file. </li>
+ * <li>
+ *   o REMOVE lines track an entry that got removed or evicted. Packed entries keep their bytes
+ *     in their segment file after they are removed, so without this line the removed entry would
+ *     come back when the cache is reopened without being closed. </li>
  * </ul>
  *
  * <p> The journal file is appended to as cache operations occur. The journal may occasionally be
@@ -67,6 +110,19 @@ import java.util.concurrent.Executor;
   private static final String TAG = Journal.class.getSimpleName();
   private static final String CLEAN_ENTRY_PREFIX = "CLEAN";
   private static final String DIRTY_ENTRY_PREFIX = "DIRTY";
+  private static final String TOMBSTONE_ENTRY_PREFIX = "TOMBSTONE";
+  private static final String TRANSACTION_PREFIX = "TXN";
+  private static final String REMOVE_ENTRY_PREFIX = "REMOVE";
+  private static final String VERSION_PREFIX = "VERSION";
+  private static final String SEGMENT_ATTRIBUTE = "seg";
+  private static final String CHUNKS_ATTRIBUTE = "chunks";
+  private static final String COMPLETE_LENGTH_ATTRIBUTE = "total";
+  private static final String UNCOMPRESSED_LENGTH_ATTRIBUTE = "deflated";
+  private static final String CHECKSUM_ATTRIBUTE = "crc";
+  private static final String VALUE_LENGTHS_ATTRIBUTE = "values";
+  private static final String METADATA_ATTRIBUTE = "meta";
+  private static final String VERSION_ATTRIBUTE = "version";
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
   private static final int JOURNAL_REBUILD_THRESHOLD = 1000;
 
   private final File mDirectory;
@@ -78,12 +134,19 @@ import java.util.concurrent.Executor;
 
   private Writer mJournalWriter;
   private int mLineCount;
+  private int mMaxSegmentId = SegmentStore.NO_SEGMENT;
+  private long mMaxVersion = Entry.NO_VERSION;
 
   @SuppressLint("EmptyCatchBlock")
   class WriteToJournalRunnable implements Runnable {
     final String mLine;
+    final int mLines;
     public WriteToJournalRunnable(String line) {
-      this.mLine = line;
+      this(line, 1);
+    }
+    public WriteToJournalRunnable(String lines, int lineCount) {
+      this.mLine = lines;
+      this.mLines = lineCount;
     }
     @Override
     public void run() {
@@ -91,7 +154,7 @@ import java.util.concurrent.Executor;
         if (mJournalWriter != null) {
           mJournalWriter.write(mLine);
           mJournalWriter.flush();
-          mLineCount++;
+          mLineCount += mLines;
           rebuildIfNeeded();
         }
       } catch (IOException ignored) {
@@ -119,29 +182,81 @@ import java.util.concurrent.Executor;
       try {
         reader = new BufferedReader(new FileReader(journalFile));
         boolean journalIsCorrupted = false;
+        boolean isTruncated = false;
+        long journalLength = 0;
         Set<String> dirtyEntryKeySet = new HashSet<>();
         String line;
         while ((line = reader.readLine()) != null) {
           String[] lineParts = line.split(" ");
           String state = lineParts[0];
           String key = lineParts[1];
-          if (CLEAN_ENTRY_PREFIX.equals(state) && lineParts.length == 3) {
+          if (CLEAN_ENTRY_PREFIX.equals(state) && lineParts.length >= 3) {
+            if (!parseCleanLine(lruEntries, lineParts)) {
+              journalIsCorrupted = true;
+              break;
+            }
+            dirtyEntryKeySet.remove(key);
+          } else if (TRANSACTION_PREFIX.equals(state) && lineParts.length == 2) {
+            int groupSize = Integer.parseInt(lineParts[1]);
+            if (groupSize < 0) {
+              journalIsCorrupted = true;
+              break;
+            }
+            String[] group = new String[groupSize];
+            int groupCount = 0;
+            long groupEnd = journalLength + line.length() + 1;
+            while (groupCount < group.length && (group[groupCount] = reader.readLine()) != null) {
+              groupEnd += group[groupCount].length() + 1;
+              groupCount++;
+            }
+            // readLine() also returns a last line without its '\n', so the group is only complete
+            // if the file goes on past the '\n' of its last line.
+            if (groupCount < group.length || groupEnd > journalFile.length()) {
+              // The journal got cut while the group was written, its entries stay dirty.
+              isTruncated = true;
+              break;
+            }
+            for (String groupLine : group) {
+              String[] groupParts = groupLine.split(" ");
+              if (!CLEAN_ENTRY_PREFIX.equals(groupParts[0]) || groupParts.length < 3 ||
+                      !parseCleanLine(lruEntries, groupParts)) {
+                journalIsCorrupted = true;
+                break;
+              }
+              dirtyEntryKeySet.remove(groupParts[1]);
+              journalLength += groupLine.length() + 1;
+              mLineCount++;
+            }
+            if (journalIsCorrupted) {
+              break;
+            }
+          } else if (DIRTY_ENTRY_PREFIX.equals(state) && lineParts.length == 2) {
+            dirtyEntryKeySet.add(key);
+          } else if (TOMBSTONE_ENTRY_PREFIX.equals(state) && lineParts.length == 3) {
             Entry entry = lruEntries.get(key);
             if (entry == null) {
               entry = new Entry(mDirectory, key);
               lruEntries.put(key, entry);
             }
-            entry.markAsPublished(Long.parseLong(lineParts[2]));
+            entry.markAsTombstone(Long.parseLong(lineParts[2]));
             dirtyEntryKeySet.remove(key);
-          } else if (DIRTY_ENTRY_PREFIX.equals(state) && lineParts.length == 2) {
-            dirtyEntryKeySet.add(key);
+          } else if (REMOVE_ENTRY_PREFIX.equals(state) && lineParts.length == 2) {
+            lruEntries.remove(key);
+          } else if (VERSION_PREFIX.equals(state) && lineParts.length == 2) {
+            mMaxVersion = Math.max(mMaxVersion, Long.parseLong(lineParts[1]));
           } else {
             journalIsCorrupted = true;
             break;
           }
+          journalLength += line.length() + 1;
           mLineCount++;
         }
         if (!journalIsCorrupted) {
+          if (isTruncated) {
+            // Drop the partial group, so that the next lines don't get appended to it.
+            reader.close();
+            truncateFile(journalFile, journalLength);
+          }
           for (String key : dirtyEntryKeySet) {
             Entry entry = lruEntries.get(key);
             if (entry != null) {
@@ -150,6 +265,15 @@ import java.util.concurrent.Executor;
             }
             lruEntries.remove(key);
           }
+          deleteConcurrentEditFiles(mDirectory);
+          long now = System.currentTimeMillis();
+          Iterator<Entry> iterator = lruEntries.values().iterator();
+          while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.isTombstone() && entry.getTombstoneExpiryMillis() <= now) {
+              iterator.remove();
+            }
+          }
           createJournalWriter();
           return lruEntries;
         }
@@ -163,6 +287,58 @@ import java.util.concurrent.Executor;
     return null;
   }
 
+  /**
+   * Apply a CLEAN line to its Entry, creating the Entry if needed.
+   * @return false if the line is malformed.
+   */
+  private boolean parseCleanLine(LinkedHashMap<String, Entry> lruEntries, String[] lineParts) {
+    String key = lineParts[1];
+    Entry entry = lruEntries.get(key);
+    if (entry == null) {
+      entry = new Entry(mDirectory, key);
+      lruEntries.put(key, entry);
+    }
+    entry.markAsPublished(Long.parseLong(lineParts[2]), Entry.FIRST_VERSION);
+    for (int i = 3; i < lineParts.length; i++) {
+      if (!parseAttribute(entry, lineParts[i])) {
+        return false;
+      }
+    }
+    if (entry.isPacked()) {
+      mMaxSegmentId = Math.max(mMaxSegmentId, entry.getSegmentId());
+    }
+    mMaxVersion = Math.max(mMaxVersion, entry.getVersion());
+    return true;
+  }
+
+  /**
+   * Get the highest segment id found in the journal read by {@link #retrieveEntriesFromJournal()},
+   * including the lines of entries that got replaced or removed since. A stale line can only be
+   * applied again by mistake if its segment id doesn't get reused for a new segment.
+   */
+  /* package */ int getMaxSegmentId() {
+    return mMaxSegmentId;
+  }
+
+  /**
+   * Get the highest Entry version found in the journal read by
+   * {@link #retrieveEntriesFromJournal()}, including the lines of entries that got replaced or
+   * removed since and the VERSION line written when the journal got rebuilt. New versions are
+   * counted from there, so that a version is not handed out again.
+   */
+  /* package */ long getMaxVersion() {
+    return mMaxVersion;
+  }
+
+  private static void truncateFile(File file, long length) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(length);
+    } finally {
+      closeQuietly(randomAccessFile);
+    }
+  }
+
   private static void maybeSwitchToBackupJournalFile(File directory) {
     File backupFile = new File(directory, JOURNAL_FILE_BACKUP);
     if (backupFile.exists()) {
@@ -198,14 +374,24 @@ import java.util.concurrent.Executor;
     Writer writer = null;
     try {
       ArrayList<Entry> entries = mCache.getEntryCollection();
+      // Read after the entries, so that it is not below the version of any of them
+      long lastVersion = mCache.getLastVersion();
       mLineCount = entries.size();
       writer = new BufferedWriter(
               new OutputStreamWriter(new FileOutputStream(mJournalFileTmp), US_ASCII));
+      if (lastVersion != Entry.NO_VERSION) {
+        writer.write(VERSION_PREFIX + ' ' + String.valueOf(lastVersion) + '\n');
+      }
 
+      long now = System.currentTimeMillis();
       for (Entry entry : entries) {
         if (entry.isReadable()) {
-          writer.write(CLEAN_ENTRY_PREFIX + ' ' + entry.getKey() + ' ' +
-                  String.valueOf(entry.getLengthInBytes()) + '\n');
+          writer.write(formatCleanLine(entry));
+        } else if (entry.isTombstone()) {
+          if (entry.getTombstoneExpiryMillis() > now) {
+            writer.write(TOMBSTONE_ENTRY_PREFIX + ' ' + entry.getKey() + ' ' +
+                    String.valueOf(entry.getTombstoneExpiryMillis()) + '\n');
+          }
         } else {
           writer.write(DIRTY_ENTRY_PREFIX + ' ' + entry.getKey() + '\n');
         }
@@ -233,6 +419,156 @@ import java.util.concurrent.Executor;
                     CLEAN_ENTRY_PREFIX + ' ' + key + ' ' + String.valueOf(length) + '\n'));
   }
 
+  /* package */ void logCleanFileUpdate(Entry entry) {
+    mExecutor.execute(new WriteToJournalRunnable(formatCleanLine(entry)));
+  }
+
+  /**
+   * Log the CLEAN lines of the entries published by a transaction as one group, written at once.
+   */
+  /* package */ void logTransaction(List<Entry> entries) {
+    StringBuilder lines = new StringBuilder();
+    lines.append(TRANSACTION_PREFIX).append(' ').append(entries.size()).append('\n');
+    for (Entry entry : entries) {
+      lines.append(formatCleanLine(entry));
+    }
+    mExecutor.execute(new WriteToJournalRunnable(lines.toString(), entries.size() + 1));
+  }
+
+  /* package */ void logRemove(String key) {
+    mExecutor.execute(new WriteToJournalRunnable(REMOVE_ENTRY_PREFIX + ' ' + key + '\n'));
+  }
+
+  /* package */ void logTombstone(String key, long expiryMillis) {
+    mExecutor.execute(
+            new WriteToJournalRunnable(
+                    TOMBSTONE_ENTRY_PREFIX + ' ' + key + ' ' + String.valueOf(expiryMillis) +
+                            '\n'));
+  }
+
+  private static String formatCleanLine(Entry entry) {
+    StringBuilder line = new StringBuilder();
+    synchronized (entry) {
+      line.append(CLEAN_ENTRY_PREFIX).append(' ').append(entry.getKey()).append(' ')
+              .append(entry.getLengthInBytes());
+      if (entry.isPacked()) {
+        line.append(' ').append(SEGMENT_ATTRIBUTE).append('=').append(entry.getSegmentId())
+                .append(':').append(entry.getSegmentOffset());
+      }
+      String[] chunkHashes = entry.getChunkHashes();
+      if (chunkHashes != null) {
+        line.append(' ').append(CHUNKS_ATTRIBUTE).append('=')
+                .append(entry.getChunkSizeInBytes()).append(':');
+        for (int i = 0; i < chunkHashes.length; i++) {
+          line.append(i > 0 ? "," : "").append(chunkHashes[i]);
+        }
+      }
+      if (entry.getCompleteLengthInBytes() != entry.getLengthInBytes()) {
+        line.append(' ').append(COMPLETE_LENGTH_ATTRIBUTE).append('=')
+                .append(entry.getCompleteLengthInBytes());
+      }
+      if (entry.isCompressed()) {
+        line.append(' ').append(UNCOMPRESSED_LENGTH_ATTRIBUTE).append('=')
+                .append(entry.getUncompressedLengthInBytes());
+      }
+      if (entry.getChecksum() != Entry.NO_CHECKSUM) {
+        line.append(' ').append(CHECKSUM_ATTRIBUTE).append('=')
+                .append(Long.toHexString(entry.getChecksum()));
+      }
+      long[] valueLengths = entry.getValueLengths();
+      if (valueLengths != null) {
+        line.append(' ').append(VALUE_LENGTHS_ATTRIBUTE).append('=');
+        for (int i = 0; i < valueLengths.length; i++) {
+          line.append(i > 0 ? "," : "").append(valueLengths[i]);
+        }
+      }
+      if (entry.getVersion() != Entry.FIRST_VERSION) {
+        line.append(' ').append(VERSION_ATTRIBUTE).append('=').append(entry.getVersion());
+      }
+      byte[] metadata = entry.getMetadata();
+      if (metadata != null) {
+        line.append(' ').append(METADATA_ATTRIBUTE).append('=');
+        for (byte b : metadata) {
+          line.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+        }
+      }
+    }
+    return line.append('\n').toString();
+  }
+
+  /**
+   * Apply a "name=value" attribute of a CLEAN line to the Entry.
+   * @return false if the attribute is malformed or unknown.
+   */
+  private static boolean parseAttribute(Entry entry, String attribute) {
+    int separator = attribute.indexOf('=');
+    if (separator < 0) {
+      return false;
+    }
+    String name = attribute.substring(0, separator);
+    String value = attribute.substring(separator + 1);
+    if (SEGMENT_ATTRIBUTE.equals(name)) {
+      int offsetSeparator = value.indexOf(':');
+      entry.setSegmentLocation(
+              Integer.parseInt(value.substring(0, offsetSeparator)),
+              Long.parseLong(value.substring(offsetSeparator + 1)));
+      return true;
+    } else if (CHUNKS_ATTRIBUTE.equals(name)) {
+      int hashesSeparator = value.indexOf(':');
+      entry.setChunks(
+              Integer.parseInt(value.substring(0, hashesSeparator)),
+              value.substring(hashesSeparator + 1).split(","));
+      return true;
+    } else if (COMPLETE_LENGTH_ATTRIBUTE.equals(name)) {
+      entry.setCompleteLengthInBytes(Long.parseLong(value));
+      return true;
+    } else if (UNCOMPRESSED_LENGTH_ATTRIBUTE.equals(name)) {
+      entry.setUncompressedLengthInBytes(Long.parseLong(value));
+      return true;
+    } else if (CHECKSUM_ATTRIBUTE.equals(name)) {
+      long checksum = Long.parseLong(value, 16);
+      if (checksum < 0 || checksum > 0xffffffffL) {
+        return false;
+      }
+      entry.setChecksum(checksum);
+      return true;
+    } else if (VALUE_LENGTHS_ATTRIBUTE.equals(name)) {
+      String[] values = value.split(",");
+      long[] valueLengths = new long[values.length];
+      for (int i = 0; i < values.length; i++) {
+        valueLengths[i] = Long.parseLong(values[i]);
+        if (valueLengths[i] < 0) {
+          return false;
+        }
+      }
+      entry.setValueLengths(valueLengths);
+      return true;
+    } else if (METADATA_ATTRIBUTE.equals(name)) {
+      if (value.length() % 2 != 0) {
+        return false;
+      }
+      byte[] metadata = new byte[value.length() / 2];
+      for (int i = 0; i < metadata.length; i++) {
+        int high = Character.digit(value.charAt(2 * i), 16);
+        int low = Character.digit(value.charAt(2 * i + 1), 16);
+        if (high < 0 || low < 0) {
+          return false;
+        }
+        metadata[i] = (byte) ((high << 4) | low);
+      }
+      entry.setMetadata(metadata);
+      return true;
+    } else if (VERSION_ATTRIBUTE.equals(name)) {
+      long version = Long.parseLong(value);
+      if (version <= Entry.NO_VERSION) {
+        return false;
+      }
+      entry.setVersion(version);
+      return true;
+    }
+    return false;
+  }
+
   /* package */ void rebuildIfNeeded() {
     if (mLineCount > JOURNAL_REBUILD_THRESHOLD) {
       mExecutor.execute(
@@ -264,7 +600,9 @@ import java.util.concurrent.Executor;
         for (File file : files) {
           String name = file.getName();
           if (name.endsWith(Entry.CLEAN_FILE_EXTENSION) ||
-                  name.endsWith(Entry.DIRTY_FILE_EXTENSION)) {
+                  name.endsWith(Entry.DIRTY_FILE_EXTENSION) ||
+                  name.endsWith(SegmentStore.SEGMENT_FILE_EXTENSION) ||
+                  name.endsWith(ChunkStore.CHUNK_FILE_EXTENSION)) {
             deleteFileIfExists(file);
           }
         }
@@ -272,6 +610,22 @@ import java.util.concurrent.Executor;
     }
   }
 
+  /**
+   * Delete the temporary files left by concurrent editors, which the journal doesn't track.
+   */
+  private static void deleteConcurrentEditFiles(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.indexOf(Entry.CONCURRENT_EDIT_SEPARATOR) >= 0 &&
+                name.endsWith(Entry.DIRTY_FILE_EXTENSION)) {
+          deleteFileIfExists(file);
+        }
+      }
+    }
+  }
+
   private static void deleteFileIfExists(File file) {
     if (file.exists()) {
       file.delete();
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+
+package com.instagram.igdiskcache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Read-only memory-mapped view of the data of a disk cache Entry, as it was when the view was
+ * taken. Reads go straight to the page cache without copying into the Java heap.
+ * <p> While the view is open, removing or evicting the Entry doesn't delete the mapped file: the
+ * deletion is deferred until all the views of the file are closed. All MappedSnapshot need to
+ * {@link #close()} after use, the buffer must not be used after that.
+ */
+public final class MappedSnapshot implements Closeable {
+  private final MappedByteBuffer mBuffer;
+  private final File mFile;
+  private final FilePins mFilePins;
+  private boolean mIsClosed;
+
+  /* package */ MappedSnapshot(MappedByteBuffer buffer, File file, FilePins filePins) {
+    mBuffer = buffer;
+    mFile = file;
+    mFilePins = filePins;
+  }
+
+  /**
+   * Get the read-only buffer holding the Entry data, from position 0 to its limit. The buffer is
+   * shared: use {@link java.nio.ByteBuffer#duplicate()} to read it from several threads.
+   */
+  public MappedByteBuffer getBuffer() {
+    return mBuffer;
+  }
+
+  /**
+   * Get the disk cache entry's length (in bytes).
+   */
+  public long getLengthInBytes() {
+    return mBuffer.capacity();
+  }
+
+  @Override
+  public synchronized void close() {
+    if (!mIsClosed) {
+      mIsClosed = true;
+      mFilePins.unpin(mFile);
+    }
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+
+package com.instagram.igdiskcache;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Online estimator of the miss ratio curve of the cache, based on spatially hashed sampling of
+ * the reference stream (SHARDS, fixed-size variant).
+ *
+ * <p> Only the keys whose hash falls below a threshold are tracked, which samples the key space
+ * at rate R = threshold / modulus. For each sampled reference the estimator measures the reuse
+ * distance in bytes: the size of the entry plus the size of the distinct sampled entries
+ * referenced since the previous reference to the same key, scaled by 1/R. An LRU cache of size C
+ * hits exactly the references whose reuse distance is at most C, so the cumulative histogram of
+ * reuse distances (kept in logarithmic buckets) is the hit rate curve.
+ *
+ * <p> Each sampled key gets a logical timestamp when it is referenced, and a Fenwick tree indexed
+ * by timestamp holds the size of the key referenced last at that time. The size of the distinct
+ * keys referenced since a given time is then a difference of two prefix sums, so a reference
+ * costs O(log n) in the number of samples. When the timestamps run out, the samples are numbered
+ * again from 0 in the order of their last reference.
+ *
+ * <p> At most {@link #MAX_SAMPLES} keys are tracked: when a new key would exceed that, the
+ * threshold is lowered to evict the sampled keys with the largest hashes, and the histogram is
+ * rescaled to the new sampling rate. Memory use is bounded no matter how many keys the cache
+ * sees.
+ */
+/* package */ final class MissRatioCurveEstimator {
+  /* package */ static final int MAX_SAMPLES = 1024;
+  private static final int MODULUS = 1 << 24;
+  private static final long MIN_DISTANCE = 1024; // 1KB
+  private static final int BUCKETS_PER_DOUBLING = 4;
+  private static final int BUCKET_COUNT = 128; // up to 1KB * 2^32
+  private static final int TIMESTAMP_COUNT = 4 * MAX_SAMPLES;
+  private static final int NO_TIMESTAMP = -1;
+
+  private static final Comparator<Sample> LARGEST_HASH_FIRST = new Comparator<Sample>() {
+    @Override
+    public int compare(Sample lhs, Sample rhs) {
+      return lhs.mHash < rhs.mHash ? 1 : (lhs.mHash == rhs.mHash ? 0 : -1);
+    }
+  };
+
+  private static final Comparator<Sample> OLDEST_FIRST = new Comparator<Sample>() {
+    @Override
+    public int compare(Sample lhs, Sample rhs) {
+      return lhs.mTimestamp < rhs.mTimestamp ? -1 : (lhs.mTimestamp == rhs.mTimestamp ? 0 : 1);
+    }
+  };
+
+  private static final class Sample {
+    final String mKey;
+    final int mHash;
+    long mSizeInBytes;
+    // Logical time of the last reference to the key
+    int mTimestamp = NO_TIMESTAMP;
+    boolean mHasPendingMiss;
+
+    Sample(String key, int hash) {
+      mKey = key;
+      mHash = hash;
+    }
+  }
+
+  private final HashMap<String, Sample> mSamples = new HashMap<>();
+  // The samples to evict first when the threshold is lowered are at the head.
+  private final PriorityQueue<Sample> mSamplesByHash =
+          new PriorityQueue<>(MAX_SAMPLES + 1, LARGEST_HASH_FIRST);
+  // Fenwick tree of the sample sizes, indexed by the timestamp of their last reference plus one.
+  private final long[] mSizeTree = new long[TIMESTAMP_COUNT + 1];
+  private int mNextTimestamp;
+  private final double[] mHistogram = new double[BUCKET_COUNT];
+  private int mThreshold = MODULUS;
+  private double mReferenceCount;
+
+  /**
+   * Record a read of the key.
+   * @param sizeInBytes size of the entry if it is in the cache, 0 on a miss.
+   */
+  /* package */ synchronized void recordGet(String key, long sizeInBytes, boolean isHit) {
+    Sample sample = recordReference(key);
+    if (sample != null) {
+      if (isHit) {
+        setSize(sample, sizeInBytes);
+      }
+      sample.mHasPendingMiss = !isHit;
+    }
+  }
+
+  /**
+   * Record an edit of the key. An edit that follows a miss on the same key is the same logical
+   * reference as the miss and is not counted again.
+   */
+  /* package */ synchronized void recordEdit(String key) {
+    Sample sample = mSamples.get(key);
+    if (sample != null && sample.mHasPendingMiss) {
+      sample.mHasPendingMiss = false;
+    } else {
+      recordReference(key);
+    }
+  }
+
+  /**
+   * Record the new size of the key's entry, without counting a reference.
+   */
+  /* package */ synchronized void recordSize(String key, long sizeInBytes) {
+    Sample sample = mSamples.get(key);
+    if (sample != null) {
+      setSize(sample, sizeInBytes);
+    }
+  }
+
+  /* package */ synchronized HitRateCurve getHitRateCurve() {
+    int lastBucket = BUCKET_COUNT - 1;
+    while (lastBucket >= 0 && mHistogram[lastBucket] == 0) {
+      lastBucket--;
+    }
+    long[] sizes = new long[lastBucket + 1];
+    float[] hitRates = new float[lastBucket + 1];
+    double hits = 0;
+    for (int i = 0; i <= lastBucket; i++) {
+      hits += mHistogram[i];
+      sizes[i] = getBucketUpperBound(i);
+      hitRates[i] = mReferenceCount > 0 ? (float) (hits / mReferenceCount) : 0;
+    }
+    double rate = (double) mThreshold / MODULUS;
+    return new HitRateCurve(sizes, hitRates, Math.round(mReferenceCount / rate));
+  }
+
+  private Sample recordReference(String key) {
+    int hash = hash(key);
+    if (hash >= mThreshold) {
+      return null;
+    }
+    mReferenceCount++;
+    Sample sample = mSamples.get(key);
+    if (sample == null) {
+      // Cold miss: infinite reuse distance, it never counts as a hit.
+      sample = new Sample(key, hash);
+      mSamples.put(key, sample);
+      mSamplesByHash.add(sample);
+      moveToNow(sample);
+      if (mSamples.size() > MAX_SAMPLES) {
+        lowerThreshold();
+      }
+      return mSamples.get(key);
+    }
+    // The samples referenced later are the distinct keys referenced since its last reference.
+    long sampledDistance = getSizeUpTo(mNextTimestamp - 1) - getSizeUpTo(sample.mTimestamp);
+    moveToNow(sample);
+    double rate = (double) mThreshold / MODULUS;
+    mHistogram[getBucket(sample.mSizeInBytes + sampledDistance / rate)]++;
+    return sample;
+  }
+
+  private void lowerThreshold() {
+    int newThreshold = mSamplesByHash.peek().mHash;
+    while (!mSamplesByHash.isEmpty() && mSamplesByHash.peek().mHash >= newThreshold) {
+      Sample sample = mSamplesByHash.poll();
+      mSamples.remove(sample.mKey);
+      addSize(sample.mTimestamp, -sample.mSizeInBytes);
+    }
+    double scale = (double) newThreshold / mThreshold;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      mHistogram[i] *= scale;
+    }
+    mReferenceCount *= scale;
+    mThreshold = newThreshold;
+  }
+
+  /**
+   * Give the sample the next timestamp, as the most recently referenced sample.
+   */
+  private void moveToNow(Sample sample) {
+    if (mNextTimestamp == TIMESTAMP_COUNT) {
+      renumberTimestamps();
+    }
+    if (sample.mTimestamp != NO_TIMESTAMP) {
+      addSize(sample.mTimestamp, -sample.mSizeInBytes);
+    }
+    sample.mTimestamp = mNextTimestamp++;
+    addSize(sample.mTimestamp, sample.mSizeInBytes);
+  }
+
+  private void setSize(Sample sample, long sizeInBytes) {
+    addSize(sample.mTimestamp, sizeInBytes - sample.mSizeInBytes);
+    sample.mSizeInBytes = sizeInBytes;
+  }
+
+  /**
+   * Number the samples again from 0 in the order of their last reference, which frees the
+   * timestamps of the references that got superseded. There are at most MAX_SAMPLES + 1 samples,
+   * so this happens once every TIMESTAMP_COUNT - MAX_SAMPLES - 1 references or more.
+   */
+  private void renumberTimestamps() {
+    Sample[] samples = mSamples.values().toArray(new Sample[mSamples.size()]);
+    Arrays.sort(samples, OLDEST_FIRST);
+    Arrays.fill(mSizeTree, 0);
+    for (int i = 0; i < samples.length; i++) {
+      samples[i].mTimestamp = i;
+      addSize(i, samples[i].mSizeInBytes);
+    }
+    mNextTimestamp = samples.length;
+  }
+
+  private void addSize(int timestamp, long sizeInBytes) {
+    for (int i = timestamp + 1; i <= TIMESTAMP_COUNT; i += i & -i) {
+      mSizeTree[i] += sizeInBytes;
+    }
+  }
+
+  /**
+   * Get the total size of the samples whose last reference is at or before the timestamp.
+   */
+  private long getSizeUpTo(int timestamp) {
+    long sizeInBytes = 0;
+    for (int i = timestamp + 1; i > 0; i -= i & -i) {
+      sizeInBytes += mSizeTree[i];
+    }
+    return sizeInBytes;
+  }
+
+  private static int getBucket(double distance) {
+    if (distance < MIN_DISTANCE) {
+      return 0;
+    }
+    double doublings = Math.log(distance / MIN_DISTANCE) / Math.log(2);
+    return (int) Math.min(BUCKET_COUNT - 1, 1 + BUCKETS_PER_DOUBLING * doublings);
+  }
+
+  private static long getBucketUpperBound(int bucket) {
+    return (long) (MIN_DISTANCE * Math.pow(2, (double) bucket / BUCKETS_PER_DOUBLING));
+  }
+
+  private static int hash(String key) {
+    // Finalizer of MurmurHash3, spreads String.hashCode() over all the bits.
+    int h = key.hashCode();
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h & (MODULUS - 1);
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+
+package com.instagram.igdiskcache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of the files recently opened for reading, so that reading a hot entry again
+ * skips the open() and close() syscalls. The channels are shared by all the readers of a file
+ * through positional reads. A file is closed once it is evicted from the cache or invalidated,
+ * and no reader holds it anymore. With a maximum size of 0, every reader opens its own file.
+ * <p> A cached channel keeps reading the file it was opened on, so the cache must be invalidated
+ * whenever a file is replaced or deleted.
+ */
+/* package */ final class OpenFileCache {
+  /* package */ static final class Handle {
+    private final FileInputStream mStream;
+    private int mReferenceCount;
+    private boolean mIsCached;
+
+    private Handle(FileInputStream stream) {
+      mStream = stream;
+    }
+
+    /* package */ FileChannel getChannel() {
+      return mStream.getChannel();
+    }
+  }
+
+  // Guarded by this
+  private final LinkedHashMap<File, Handle> mHandles = new LinkedHashMap<>(0, 0.75f, true);
+  private int mMaxSize;
+  private long mInvalidationCount;
+
+  /* package */ synchronized void setMaxSize(int maxSize) {
+    mMaxSize = maxSize;
+    trimToSize();
+  }
+
+  /**
+   * Get an open handle on the file, which must be released after use.
+   */
+  /* package */ Handle acquire(File file) throws FileNotFoundException {
+    long invalidationCount;
+    synchronized (this) {
+      Handle handle = mHandles.get(file);
+      if (handle != null) {
+        handle.mReferenceCount++;
+        return handle;
+      }
+      invalidationCount = mInvalidationCount;
+    }
+    // Open the file outside of the lock, readers of other files don't need to wait for it.
+    Handle handle = new Handle(new FileInputStream(file));
+    synchronized (this) {
+      Handle cached = mHandles.get(file);
+      if (cached != null) {
+        Journal.closeQuietly(handle.mStream);
+        handle = cached;
+      } else if (mMaxSize > 0 && invalidationCount == mInvalidationCount) {
+        // Only cache the handle if no file was replaced while it was being opened, it might
+        // have been opened on the old file.
+        handle.mIsCached = true;
+        mHandles.put(file, handle);
+        trimToSize();
+      }
+      handle.mReferenceCount++;
+      return handle;
+    }
+  }
+
+  /* package */ synchronized void release(Handle handle) {
+    handle.mReferenceCount--;
+    closeIfUnused(handle);
+  }
+
+  /**
+   * Drop the cached handle of a file that is about to be replaced or deleted. Readers holding the
+   * handle keep reading the old file.
+   */
+  /* package */ synchronized void invalidate(File file) {
+    mInvalidationCount++;
+    Handle handle = mHandles.remove(file);
+    if (handle != null) {
+      handle.mIsCached = false;
+      closeIfUnused(handle);
+    }
+  }
+
+  /**
+   * Drop all the cached files. The files still held by readers get closed once released.
+   */
+  /* package */ synchronized void clear() {
+    trimToSize(0);
+  }
+
+  private void trimToSize() {
+    trimToSize(mMaxSize);
+  }
+
+  private void trimToSize(int maxSize) {
+    Iterator<Map.Entry<File, Handle>> iterator = mHandles.entrySet().iterator();
+    while (mHandles.size() > maxSize && iterator.hasNext()) {
+      Handle handle = iterator.next().getValue();
+      iterator.remove();
+      handle.mIsCached = false;
+      closeIfUnused(handle);
+    }
+  }
+
+  private static void closeIfUnused(Handle handle) {
+    if (handle.mReferenceCount <= 0 && !handle.mIsCached) {
+      Journal.closeQuietly(handle.mStream);
+    }
+  }
+}
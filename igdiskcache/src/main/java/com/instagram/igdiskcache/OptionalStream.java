@@ -11,10 +11,15 @@ package com.instagram.igdiskcache;
 
 public class OptionalStream<T> {
   private T mFileStream = null;
+  private boolean mIsKnownAbsent = false;
 
   private OptionalStream() {
   }
 
+  private OptionalStream(boolean isKnownAbsent) {
+    mIsKnownAbsent = isKnownAbsent;
+  }
+
   private OptionalStream(T fileStream) {
     mFileStream = fileStream;
   }
@@ -26,6 +31,14 @@ public class OptionalStream<T> {
     return mFileStream != null;
   }
 
+  /**
+   * Check if the value is known not to exist, as opposed to just not being available. This is the
+   * case when a tombstone was recorded for the entry, see {@link IgDiskCache#putTombstone}.
+   */
+  public boolean isKnownAbsent() {
+    return mIsKnownAbsent;
+  }
+
   /**
    * Get the {@link T} object from the OptionalStream<T> wrapper.
    * Should call {@link OptionalStream#isPresent()} first to make sure the {@link T} object is
@@ -46,6 +59,13 @@ public class OptionalStream<T> {
     return new OptionalStream<>();
   }
 
+  /**
+   * The stub {@link OptionalStream<T>} object for a value that is known not to exist.
+   */
+  public static <T> OptionalStream<T> knownAbsent() {
+    return new OptionalStream<>(true);
+  }
+
   /**
    * Create a {@link OptionalStream<T>} wrapper using the {@link T} object.
    */
@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+
+package com.instagram.igdiskcache;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Random access to the data of a disk cache Entry, as it was when the snapshot was taken. Reads are
+ * positional reads of the underlying files into caller-supplied ByteBuffers: the snapshot has no
+ * read position, and can be shared by several threads reading different ranges at the same time.
+ * All RandomAccessSnapshot need to {@link #close()} after use to prevent resource leak.
+ * <p> A value that is still queued in write-behind mode (see {@link IgDiskCache#enableWriteBehind})
+ * is read from memory instead, it has no file yet.
+ */
+public final class RandomAccessSnapshot implements Closeable {
+  private final File[] mFiles;
+  private final long mStartOffset;
+  private final long mChunkSizeInBytes;
+  private final long mLengthInBytes;
+  private final long mCompleteLengthInBytes;
+  private final long mUncompressedLengthInBytes;
+  private final long mChecksum;
+  private final long[] mValueLengths;
+  private final long mVersion;
+  private final boolean mIsPacked;
+  // The value queued in write-behind mode, or null for data read from files.
+  private final byte[] mQueuedValue;
+  private final Entry mEntry;
+  private final IgDiskCache mCache;
+  private final ChunkStore mChunkStore;
+  private final OpenFileCache mOpenFileCache;
+  // Guarded by this
+  private final OpenFileCache.Handle[] mHandles;
+  private FileInputStream mDescriptorStream;
+  private String[] mChunkHashes;
+  private boolean mIsClosed;
+
+  /* package */ RandomAccessSnapshot(
+          Entry entry,
+          IgDiskCache cache,
+          ChunkStore chunkStore,
+          OpenFileCache openFileCache) throws FileNotFoundException {
+    mEntry = entry;
+    mCache = cache;
+    mChunkStore = chunkStore;
+    mOpenFileCache = openFileCache;
+    mQueuedValue = null;
+    synchronized (entry) {
+      mChunkHashes = entry.getChunkHashes();
+      if (mChunkHashes != null) {
+        // Keep the chunks from being deleted until the snapshot is closed.
+        chunkStore.retain(mChunkHashes);
+        mFiles = new File[mChunkHashes.length];
+        for (int i = 0; i < mChunkHashes.length; i++) {
+          mFiles[i] = chunkStore.getChunkFile(mChunkHashes[i]);
+        }
+        mChunkSizeInBytes = entry.getChunkSizeInBytes();
+      } else {
+        mFiles = new File[] {entry.isPacked() ? entry.getSegmentFile() : entry.getCleanFile()};
+        mChunkSizeInBytes = Long.MAX_VALUE;
+      }
+      mStartOffset = entry.isPacked() ? entry.getSegmentOffset() : 0;
+      mLengthInBytes = entry.getLengthInBytes();
+      mCompleteLengthInBytes = entry.getCompleteLengthInBytes();
+      mUncompressedLengthInBytes = entry.getUncompressedLengthInBytes();
+      mChecksum = entry.getChecksum();
+      mValueLengths = entry.getValueLengths();
+      mVersion = entry.getVersion();
+      mIsPacked = entry.isPacked();
+    }
+    mHandles = new OpenFileCache.Handle[mFiles.length];
+    try {
+      getChannel(0);
+    } catch (IOException e) {
+      close();
+      throw e instanceof FileNotFoundException
+              ? (FileNotFoundException) e
+              : new FileNotFoundException(e.getMessage());
+    }
+  }
+
+  /**
+   * Snapshot of a value queued in write-behind mode, read from memory. The array must not be
+   * modified.
+   * @param version the version of the Entry on disk, the queued value has none until written.
+   */
+  /* package */ RandomAccessSnapshot(byte[] queuedValue, long version) {
+    mEntry = null;
+    mCache = null;
+    mChunkStore = null;
+    mOpenFileCache = null;
+    mQueuedValue = queuedValue;
+    mFiles = new File[0];
+    mChunkSizeInBytes = Long.MAX_VALUE;
+    mStartOffset = 0;
+    mLengthInBytes = queuedValue.length;
+    mCompleteLengthInBytes = queuedValue.length;
+    mUncompressedLengthInBytes = Entry.NOT_COMPRESSED;
+    mChecksum = Entry.NO_CHECKSUM;
+    mValueLengths = null;
+    mVersion = version;
+    mIsPacked = false;
+    mHandles = new OpenFileCache.Handle[0];
+  }
+
+  /**
+   * Get the disk cache entry's length (in bytes).
+   */
+  public long getLengthInBytes() {
+    return mLengthInBytes;
+  }
+
+  /**
+   * Check if the snapshot holds the whole value of the entry. A chunked entry can get evicted
+   * from its tail, in which case only the beginning of the value is left.
+   */
+  public boolean isComplete() {
+    return mLengthInBytes == mCompleteLengthInBytes;
+  }
+
+  /**
+   * Get the version of the entry the snapshot reads, see {@link IgDiskCache#getVersion(String)}.
+   */
+  public long getVersion() {
+    return mVersion;
+  }
+
+  /**
+   * Get the number of values of the entry, see {@link IgDiskCache#setValueCount(int)}. The values
+   * are stored one after the other.
+   */
+  public int getValueCount() {
+    return mValueLengths == null ? 1 : mValueLengths.length;
+  }
+
+  /**
+   * Get the position of a value in the entry data. The values past the value count are empty, and
+   * positioned at the end of the data.
+   * @throws IndexOutOfBoundsException if the index is negative.
+   */
+  public long getValueOffset(int index) {
+    if (index < 0) {
+      throw new IndexOutOfBoundsException("Negative value index: " + index);
+    }
+    long offset = 0;
+    for (int i = 0; i < Math.min(index, getValueCount()); i++) {
+      offset += getStoredValueLength(i);
+    }
+    return Math.min(offset, getDataLengthInBytes());
+  }
+
+  /**
+   * Get the length of a value. If the tail of the entry got evicted, this is the length of the
+   * part of the value that is left. The values past the value count are empty.
+   * @throws IndexOutOfBoundsException if the index is negative.
+   */
+  public long getValueLength(int index) {
+    long offset = getValueOffset(index);
+    long length = index < getValueCount() ? getStoredValueLength(index) : 0;
+    return Math.min(length, getDataLengthInBytes() - offset);
+  }
+
+  private long getStoredValueLength(int index) {
+    // A single value spans the whole data.
+    return mValueLengths == null ? Long.MAX_VALUE : mValueLengths[index];
+  }
+
+  /**
+   * Get the length of the entry data before compression.
+   */
+  private long getDataLengthInBytes() {
+    return isCompressed() ? mUncompressedLengthInBytes : mLengthInBytes;
+  }
+
+  /**
+   * Read bytes of the entry starting at the given position into the buffer. Like
+   * {@link FileChannel#read(ByteBuffer, long)}, this may read fewer bytes than the buffer has
+   * room for.
+   * @return the number of bytes read, or -1 if the position is at or past the end of the entry.
+   */
+  public int read(ByteBuffer destination, long position) throws IOException {
+    if (position < 0) {
+      throw new IllegalArgumentException("Negative position: " + position);
+    } else if (position >= mLengthInBytes) {
+      return -1;
+    } else if (!destination.hasRemaining()) {
+      return 0;
+    } else if (mQueuedValue != null) {
+      checkNotClosed();
+      int count = (int) Math.min(destination.remaining(), mLengthInBytes - position);
+      destination.put(mQueuedValue, (int) position, count);
+      return count;
+    }
+    int fileIndex = (int) (position / mChunkSizeInBytes);
+    long positionInFile = position % mChunkSizeInBytes;
+    int count = (int) Math.min(
+            Math.min(destination.remaining(), mLengthInBytes - position),
+            mChunkSizeInBytes - positionInFile);
+    FileChannel channel = getChannel(fileIndex);
+    int limit = destination.limit();
+    destination.limit(destination.position() + count);
+    try {
+      return channel.read(destination, mStartOffset + positionInFile);
+    } finally {
+      destination.limit(limit);
+    }
+  }
+
+  /**
+   * Fill the buffer with bytes of the entry starting at the given position.
+   * @throws EOFException if the entry ends before the buffer is full.
+   */
+  public void readFully(ByteBuffer destination, long position) throws IOException {
+    while (destination.hasRemaining()) {
+      int read = read(destination, position);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      position += read;
+    }
+  }
+
+  /**
+   * Transfer a range of the entry to the target channel with
+   * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which lets the kernel copy the
+   * data (sendfile, splice) without going through the Java heap. The range ends after count bytes,
+   * or at the end of the entry.
+   * @return the number of bytes transferred, which is less than requested if the target is a
+   * non-blocking channel that can't accept more bytes right now.
+   * @throws IOException if reading the entry or writing to the target fails.
+   */
+  public long transferTo(long position, long count, WritableByteChannel target)
+          throws IOException {
+    if (position < 0 || count < 0) {
+      throw new IllegalArgumentException(
+              "Invalid range, position: " + position + ", count: " + count);
+    }
+    long endPosition = count >= mLengthInBytes - position ? mLengthInBytes : position + count;
+    if (mQueuedValue != null && position < endPosition) {
+      checkNotClosed();
+      ByteBuffer source =
+              ByteBuffer.wrap(mQueuedValue, (int) position, (int) (endPosition - position));
+      while (source.hasRemaining()) {
+        if (target.write(source) == 0) {
+          // The non-blocking target can't accept more bytes right now.
+          break;
+        }
+      }
+      return source.position() - position;
+    }
+    long transferred = 0;
+    while (position < endPosition) {
+      int fileIndex = (int) (position / mChunkSizeInBytes);
+      long positionInFile = position % mChunkSizeInBytes;
+      long chunkCount = Math.min(endPosition - position, mChunkSizeInBytes - positionInFile);
+      long sent = getChannel(fileIndex)
+              .transferTo(mStartOffset + positionInFile, chunkCount, target);
+      if (sent <= 0) {
+        break;
+      }
+      position += sent;
+      transferred += sent;
+    }
+    return transferred;
+  }
+
+  @Override
+  public synchronized void close() {
+    mIsClosed = true;
+    for (int i = 0; i < mHandles.length; i++) {
+      if (mHandles[i] != null) {
+        mOpenFileCache.release(mHandles[i]);
+        mHandles[i] = null;
+      }
+    }
+    Journal.closeQuietly(mDescriptorStream);
+    mDescriptorStream = null;
+    if (mChunkHashes != null) {
+      mChunkStore.release(mChunkHashes);
+      mChunkHashes = null;
+    }
+  }
+
+  /**
+   * Check if the Entry data is compressed, in which case the snapshot reads the compressed data.
+   */
+  /* package */ boolean isCompressed() {
+    return mUncompressedLengthInBytes != Entry.NOT_COMPRESSED;
+  }
+
+  /* package */ long getUncompressedLengthInBytes() {
+    return mUncompressedLengthInBytes;
+  }
+
+  /**
+   * Get the CRC32 of the stored Entry data, or {@link Entry#NO_CHECKSUM}.
+   */
+  /* package */ long getChecksum() {
+    return mChecksum;
+  }
+
+  /**
+   * Check that the file holding the start of the Entry data is as long as the index says, a
+   * shorter file got truncated or only partially written.
+   */
+  /* package */ boolean hasExpectedFileLength() throws IOException {
+    long expectedLength = Math.min(mLengthInBytes, mChunkSizeInBytes);
+    long fileLength = getChannel(0).size() - mStartOffset;
+    // A segment file holds other entries after this one.
+    return mIsPacked ? fileLength >= expectedLength : fileLength == expectedLength;
+  }
+
+  /**
+   * Remove the Entry from the cache because its data is corrupted, unless the Entry got updated
+   * since the snapshot was taken.
+   */
+  /* package */ void removeCorruptedEntry() {
+    mCache.removeCorruptedEntry(mEntry, mCompleteLengthInBytes, mChecksum);
+  }
+
+  /* package */ String getPath() {
+    return mQueuedValue != null ? null : mFiles[0].getAbsolutePath();
+  }
+
+  /* package */ synchronized FileDescriptor getFD() throws IOException {
+    if (mQueuedValue != null) {
+      throw new IOException("A value queued in write-behind mode has no file yet.");
+    } else if (mFiles.length > 1) {
+      throw new IOException("A chunked entry has no single file descriptor.");
+    }
+    if (mIsPacked) {
+      // The segment file goes on with the data of other entries past the end of this one.
+      throw new IOException("A packed entry has no file descriptor of its own.");
+    }
+    checkNotClosed();
+    if (mDescriptorStream == null) {
+      // The cached channels are shared by other readers, the file descriptor gets its own file.
+      mDescriptorStream = new FileInputStream(mFiles[0]);
+    }
+    return mDescriptorStream.getFD();
+  }
+
+  private synchronized FileChannel getChannel(int fileIndex) throws IOException {
+    checkNotClosed();
+    if (mHandles[fileIndex] == null) {
+      mHandles[fileIndex] = mOpenFileCache.acquire(mFiles[fileIndex]);
+    }
+    return mHandles[fileIndex].getChannel();
+  }
+
+  private void checkNotClosed() throws IOException {
+    if (mIsClosed) {
+      throw new IOException("The snapshot is closed.");
+    }
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+
+package com.instagram.igdiskcache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Log-structured storage for small entries. Instead of getting a file of their own, small entries
+ * are appended to large segment files named "[segment id].seg", and the index keeps their
+ * (segment, offset, length) location. This saves a file creation, a rename and an inode per
+ * entry.
+ *
+ * <p> Only the last segment is appended to. Removing or overwriting a packed entry leaves a hole
+ * in its segment; once the live data of a sealed segment drops below half of the segment, the
+ * segment should be compacted: its live entries get appended to the active segment and the old
+ * segment file is deleted when nothing lives in it anymore.
+ */
+/* package */ final class SegmentStore {
+  /* package */ static final String SEGMENT_FILE_EXTENSION = ".seg";
+  /* package */ static final int NO_SEGMENT = -1;
+  private static final long MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+  private static final float COMPACTION_LIVE_RATIO = 0.5f;
+
+  private final File mDirectory;
+  private final FilePins mFilePins;
+  // Guarded by this
+  private final Map<Integer, Segment> mSegments = new TreeMap<>();
+  private Segment mActiveSegment;
+  private RandomAccessFile mActiveFile;
+  private int mNextSegmentId;
+
+  private static final class Segment {
+    final int mId;
+    long mLengthInBytes;
+    long mLiveBytes;
+    int mLiveEntries;
+
+    Segment(int id) {
+      mId = id;
+    }
+  }
+
+  /* package */ static final class Location {
+    final int mSegmentId;
+    final long mOffset;
+
+    Location(int segmentId, long offset) {
+      mSegmentId = segmentId;
+      mOffset = offset;
+    }
+  }
+
+  /* package */ SegmentStore(File directory, FilePins filePins) {
+    mDirectory = directory;
+    mFilePins = filePins;
+  }
+
+  /* package */ static File getSegmentFile(File directory, int segmentId) {
+    return new File(directory, segmentId + SEGMENT_FILE_EXTENSION);
+  }
+
+  /**
+   * Rebuild the segment accounting from the entries restored from the journal, and delete the
+   * segment files that no entry lives in. New segments get ids above the ids of the segment files
+   * and of all the journal lines, so that a stale journal line never points to a new segment.
+   * @param maxJournalSegmentId highest segment id found in the journal, see
+   * {@link Journal#getMaxSegmentId()}.
+   */
+  /* package */ synchronized void restore(Collection<Entry> entries, int maxJournalSegmentId) {
+    mNextSegmentId = Math.max(mNextSegmentId, maxJournalSegmentId + 1);
+    for (Entry entry : entries) {
+      if (entry.isPacked()) {
+        Segment segment = mSegments.get(entry.getSegmentId());
+        if (segment == null) {
+          segment = new Segment(entry.getSegmentId());
+          segment.mLengthInBytes = getSegmentFile(mDirectory, segment.mId).length();
+          mSegments.put(segment.mId, segment);
+        }
+        segment.mLiveBytes += entry.getLengthInBytes();
+        segment.mLiveEntries++;
+      }
+    }
+    File[] files = mDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.endsWith(SEGMENT_FILE_EXTENSION)) {
+          try {
+            int segmentId = Integer.parseInt(
+                    name.substring(0, name.length() - SEGMENT_FILE_EXTENSION.length()));
+            mNextSegmentId = Math.max(mNextSegmentId, segmentId + 1);
+            if (!mSegments.containsKey(segmentId)) {
+              file.delete(); // No need to handle the fail case. Ignore the return.
+            }
+          } catch (NumberFormatException ignored) {
+            // Not a segment file.
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Append an entry to the active segment.
+   * @return the location of the entry.
+   */
+  /* package */ synchronized Location append(byte[] buffer, int count) throws IOException {
+    if (mActiveSegment == null || mActiveSegment.mLengthInBytes >= MAX_SEGMENT_SIZE) {
+      openNextSegment();
+    }
+    Segment segment = mActiveSegment;
+    long offset = segment.mLengthInBytes;
+    FileChannel channel = mActiveFile.getChannel();
+    ByteBuffer source = ByteBuffer.wrap(buffer, 0, count);
+    try {
+      while (source.hasRemaining()) {
+        channel.write(source, offset + source.position());
+      }
+    } catch (IOException e) {
+      // Don't append to a segment which might now have a partially written entry at its end.
+      sealActiveSegment();
+      throw e;
+    }
+    segment.mLengthInBytes += count;
+    segment.mLiveBytes += count;
+    segment.mLiveEntries++;
+    return new Location(segment.mId, offset);
+  }
+
+  /**
+   * Read a packed entry, used to move it during compaction.
+   */
+  /* package */ byte[] read(int segmentId, long offset, int length) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(getSegmentFile(mDirectory, segmentId), "r");
+    try {
+      byte[] data = new byte[length];
+      ByteBuffer destination = ByteBuffer.wrap(data);
+      FileChannel channel = file.getChannel();
+      while (destination.hasRemaining()) {
+        if (channel.read(destination, offset + destination.position()) < 0) {
+          throw new IOException("Segment " + segmentId + " is truncated.");
+        }
+      }
+      return data;
+    } finally {
+      Journal.closeQuietly(file);
+    }
+  }
+
+  /**
+   * Mark the bytes of a packed entry as dead, after the entry got removed, overwritten or moved.
+   * @return true if the segment should now be compacted.
+   */
+  /* package */ synchronized boolean release(int segmentId, long length) {
+    Segment segment = mSegments.get(segmentId);
+    if (segment == null) {
+      return false;
+    }
+    segment.mLiveBytes -= length;
+    segment.mLiveEntries--;
+    if (segment == mActiveSegment) {
+      return false;
+    } else if (segment.mLiveEntries <= 0) {
+      mSegments.remove(segmentId);
+      mFilePins.delete(getSegmentFile(mDirectory, segmentId)); // Ignore the return.
+      return false;
+    }
+    return needsCompaction(segment);
+  }
+
+  /**
+   * Get the sealed segments whose live data dropped below the compaction threshold.
+   */
+  /* package */ synchronized List<Integer> getSegmentsToCompact() {
+    List<Integer> segmentIds = new ArrayList<>();
+    for (Segment segment : mSegments.values()) {
+      if (segment != mActiveSegment && needsCompaction(segment)) {
+        segmentIds.add(segment.mId);
+      }
+    }
+    return segmentIds;
+  }
+
+  /* package */ synchronized void close() {
+    sealActiveSegment();
+  }
+
+  private static boolean needsCompaction(Segment segment) {
+    return segment.mLiveBytes < segment.mLengthInBytes * COMPACTION_LIVE_RATIO;
+  }
+
+  private void openNextSegment() throws IOException {
+    sealActiveSegment();
+    Segment segment = new Segment(mNextSegmentId++);
+    File file = getSegmentFile(mDirectory, segment.mId);
+    mActiveFile = new RandomAccessFile(file, "rw");
+    mActiveFile.setLength(0);
+    mActiveSegment = segment;
+    mSegments.put(segment.mId, segment);
+  }
+
+  private void sealActiveSegment() {
+    Journal.closeQuietly(mActiveFile);
+    mActiveFile = null;
+    mActiveSegment = null;
+  }
+}
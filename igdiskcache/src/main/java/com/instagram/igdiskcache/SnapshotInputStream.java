@@ -9,35 +9,422 @@
 
 package com.instagram.igdiskcache;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * InputStream used for reading data out of the disk cache Entry.
  * All SnapshotInputStream need to {@link #close()} after use to prevent resource leak.
+ * <p> The SnapshotInputStream is a plain InputStream, not a FileInputStream. {@link #getFD()} is
+ * only available for an Entry stored alone in a file of its own, uncompressed.
+ * <p> The stream reads the Entry data through a {@link RandomAccessSnapshot}: the data of a packed
+ * Entry lives at an offset of a segment file shared with other entries, and the data of a chunked
+ * Entry is spread over several chunk files. The data of a compressed Entry is inflated as it is
+ * read, skipping forward or resetting the stream inflates the data again from the start.
+ * <p> When the stored data gets read in order up to its end, it is checked against the checksum
+ * published with the Entry. On a mismatch the read fails with an IOException and the Entry is
+ * removed from the cache. There is a single checksum for the whole stored data, so nothing is
+ * checked when the stream reads a range or a value that doesn't cover all of it, when it skips
+ * data without reading it again from the start, or when the tail of a chunked Entry got evicted.
+ * <p> Small reads of an Entry that is not compressed are served from a direct buffer taken from
+ * the cache's buffer pool, so there is no need to wrap the stream in a BufferedInputStream. To get
+ * the data in bulk, {@link #readFully(ByteBuffer)} reads straight into a buffer, and
+ * {@link #readFully()} reads the rest of the stream into a buffer sized from the entry length.
  */
-public final class SnapshotInputStream extends FileInputStream {
+public final class SnapshotInputStream extends InputStream {
+  private static final int INFLATER_INPUT_SIZE = 4096;
+
+  private final RandomAccessSnapshot mSnapshot;
+  private final BufferPool mBufferPool;
   private final long mLengthInBytes;
-  private final String mPath;
+  private final long mEndPosition;
+  private long mPosition;
+  private long mMarkPosition;
+  // Only used for a compressed Entry
+  private final Inflater mInflater;
+  private byte[] mInflaterInput;
+  private long mInflatedPosition;
+  private long mCompressedPosition;
+  // Null if the Entry has no checksum, or only has its beginning left
+  private final CRC32 mChecksum;
+  // Position in the stored data up to which the checksum is computed, -1 after a gap
+  private long mChecksumPosition;
+  private byte[] mChecksumInput;
+  // Holds the stored data from mBufferStart, only used for an Entry that is not compressed
+  private ByteBuffer mReadBuffer;
+  private long mBufferStart;
 
-  /* package */ SnapshotInputStream(Entry entry)
-          throws FileNotFoundException {
-    super(entry.getCleanFile());
-    mLengthInBytes = entry.getLengthInBytes();
-    mPath = entry.getCleanFile().getAbsolutePath();
+  /**
+   * Read a byte range of a value of the Entry: the stream starts at offset in the value and ends
+   * after length bytes, or at the end of the value.
+   */
+  /* package */ SnapshotInputStream(
+          RandomAccessSnapshot snapshot,
+          BufferPool bufferPool,
+          int valueIndex,
+          long offset,
+          long length) {
+    long valueOffset = snapshot.getValueOffset(valueIndex);
+    long valueLength = snapshot.getValueLength(valueIndex);
+    long start = Math.min(offset, valueLength);
+    mInflater = snapshot.isCompressed() ? new Inflater() : null;
+    mSnapshot = snapshot;
+    mBufferPool = bufferPool;
+    mLengthInBytes = valueLength;
+    mPosition = valueOffset + start;
+    mEndPosition = valueOffset + (length >= valueLength - start ? valueLength : start + length);
+    mMarkPosition = mPosition;
+    mChecksum = snapshot.getChecksum() != Entry.NO_CHECKSUM && snapshot.isComplete()
+            ? new CRC32()
+            : null;
   }
 
   /**
-   * Get the disk cache entry's length (in bytes).
+   * Get the disk cache entry's length (in bytes). For an entry holding several values, this is the
+   * length of the value read by the stream.
    */
   public long getLengthInBytes() {
     return mLengthInBytes;
   }
 
   /**
-   * Get file absolute path
+   * Check if the snapshot holds the whole value of the entry. A chunked entry can get evicted
+   * from its tail, in which case only the beginning of the value is left.
+   */
+  public boolean isComplete() {
+    return mSnapshot.isComplete();
+  }
+
+  /**
+   * Get the version of the entry the stream reads, to be passed to
+   * {@link IgDiskCache#editIfVersion(String, long)} to replace exactly this version.
+   */
+  public long getVersion() {
+    return mSnapshot.getVersion();
+  }
+
+  /**
+   * Get file absolute path. For a packed Entry this is the path of the segment file, the Entry
+   * data starts at an offset of that file. For a chunked Entry this is the path of the first
+   * chunk. For a compressed Entry the file holds the compressed data. For a value still queued
+   * in write-behind mode this is null, the value has no file yet.
    */
   public String getPath() {
-    return mPath;
+    return mSnapshot.getPath();
+  }
+
+  /**
+   * Get the file descriptor of the underlying file, which holds exactly the Entry data.
+   * @throws IOException if the Entry is packed in a segment file shared with other entries, if it
+   * is stored in several chunks, if it is compressed, or if it is still queued in write-behind
+   * mode. Reading the stream itself works for any Entry.
+   */
+  public FileDescriptor getFD() throws IOException {
+    if (mInflater != null) {
+      throw new IOException("The file of a compressed entry doesn't hold the entry data.");
+    }
+    return mSnapshot.getFD();
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (mInflater == null) {
+      if (mPosition >= mEndPosition || (!isBuffered(mPosition) && !fillReadBuffer())) {
+        return -1;
+      }
+      return mReadBuffer.get((int) (mPosition++ - mBufferStart)) & 0xff;
+    }
+    byte[] oneByte = new byte[1];
+    return read(oneByte, 0, 1) < 0 ? -1 : oneByte[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+    if (byteCount == 0) {
+      return 0;
+    } else if (mPosition >= mEndPosition) {
+      return -1;
+    }
+    int count = (int) Math.min(byteCount, mEndPosition - mPosition);
+    int read;
+    if (mInflater != null) {
+      read = readInflated(buffer, byteOffset, count);
+    } else if (isBuffered(mPosition) || count < BufferPool.BUFFER_SIZE) {
+      read = readBuffered(buffer, byteOffset, count);
+    } else {
+      read = mSnapshot.read(ByteBuffer.wrap(buffer, byteOffset, count), mPosition);
+      if (read > 0) {
+        updateChecksum(buffer, byteOffset, read, mPosition);
+      }
+    }
+    if (read > 0) {
+      mPosition += read;
+    }
+    return read;
+  }
+
+  /**
+   * Read bytes into the destination until it is full or the stream ends. Unless they are already
+   * buffered, the bytes of an Entry that is not compressed are read straight into the destination.
+   * @return the number of bytes read, which is only less than the room left in the destination at
+   * the end of the stream, or -1 if the stream is already at its end.
+   */
+  public int readFully(ByteBuffer destination) throws IOException {
+    if (!destination.hasRemaining()) {
+      return 0;
+    } else if (mPosition >= mEndPosition) {
+      return -1;
+    }
+    int start = destination.position();
+    byte[] bytes = null;
+    while (destination.hasRemaining()) {
+      int count = (int) Math.min(destination.remaining(), mEndPosition - mPosition);
+      int read;
+      if (count == 0) {
+        break;
+      } else if (mInflater == null && !isBuffered(mPosition)) {
+        ByteBuffer data = destination.duplicate();
+        int limit = destination.limit();
+        destination.limit(destination.position() + count);
+        try {
+          read = mSnapshot.read(destination, mPosition);
+        } finally {
+          destination.limit(limit);
+        }
+        if (read > 0) {
+          data.limit(data.position() + read);
+          updateChecksum(data, mPosition);
+          mPosition += read;
+        }
+      } else if (destination.hasArray()) {
+        read = read(destination.array(), destination.arrayOffset() + destination.position(), count);
+        if (read > 0) {
+          destination.position(destination.position() + read);
+        }
+      } else {
+        if (bytes == null) {
+          bytes = new byte[Math.min(count, INFLATER_INPUT_SIZE)];
+        }
+        read = read(bytes, 0, Math.min(count, bytes.length));
+        if (read > 0) {
+          destination.put(bytes, 0, read);
+        }
+      }
+      if (read < 0) {
+        break;
+      }
+    }
+    return destination.position() - start;
+  }
+
+  /**
+   * Read the rest of the stream into a new buffer, sized from the length of the entry.
+   * @return the buffer, ready to be read from.
+   * @throws IOException if reading fails, the entry data ends early, or the rest of the stream is
+   * too large for a buffer.
+   */
+  public ByteBuffer readFully() throws IOException {
+    long remaining = Math.max(0, mEndPosition - mPosition);
+    if (remaining > Integer.MAX_VALUE) {
+      throw new IOException("The entry is too large to be read into a buffer: " + remaining);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate((int) remaining);
+    readFully(buffer);
+    if (buffer.hasRemaining()) {
+      throw new EOFException("The entry data ends early.");
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  @Override
+  public long skip(long byteCount) {
+    long skipped = Math.max(0, Math.min(byteCount, mEndPosition - mPosition));
+    mPosition += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return (int) Math.min(Integer.MAX_VALUE, mEndPosition - mPosition);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readLimit) {
+    mMarkPosition = mPosition;
+  }
+
+  @Override
+  public synchronized void reset() {
+    mPosition = mMarkPosition;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mInflater != null) {
+      mInflater.end();
+    }
+    if (mReadBuffer != null) {
+      mBufferPool.release(mReadBuffer);
+      mReadBuffer = null;
+    }
+    mSnapshot.close();
+  }
+
+  private boolean isBuffered(long position) {
+    return mReadBuffer != null
+            && position >= mBufferStart
+            && position < mBufferStart + mReadBuffer.limit();
+  }
+
+  private int readBuffered(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+    if (!isBuffered(mPosition) && !fillReadBuffer()) {
+      return -1;
+    }
+    mReadBuffer.position((int) (mPosition - mBufferStart));
+    int count = Math.min(byteCount, mReadBuffer.remaining());
+    mReadBuffer.get(buffer, byteOffset, count);
+    return count;
+  }
+
+  /**
+   * Fill the read buffer with the stored data from the current position.
+   * @return false if the data ends at the current position.
+   */
+  private boolean fillReadBuffer() throws IOException {
+    if (mReadBuffer == null) {
+      mReadBuffer = mBufferPool.acquire();
+    }
+    mReadBuffer.clear();
+    mReadBuffer.limit((int) Math.min(mReadBuffer.capacity(), mEndPosition - mPosition));
+    mBufferStart = mPosition;
+    int read;
+    try {
+      read = mSnapshot.read(mReadBuffer, mPosition);
+    } finally {
+      mReadBuffer.flip();
+    }
+    if (read <= 0) {
+      return false;
+    }
+    try {
+      updateChecksum(mReadBuffer, mPosition);
+    } catch (IOException e) {
+      // Don't serve the corrupted data.
+      mReadBuffer.limit(0);
+      throw e;
+    }
+    return true;
+  }
+
+  /**
+   * Like {@link #updateChecksum(byte[], int, int, long)}, for the remaining bytes of the buffer.
+   */
+  private void updateChecksum(ByteBuffer data, long position) throws IOException {
+    if (data.hasArray()) {
+      updateChecksum(
+              data.array(),
+              data.arrayOffset() + data.position(),
+              data.remaining(),
+              position);
+      return;
+    } else if (mChecksum == null) {
+      return;
+    } else if (position != 0 && position != mChecksumPosition) {
+      mChecksumPosition = -1;
+      return;
+    }
+    // The checksum can only be computed from an array, copy the data of direct buffers.
+    if (mChecksumInput == null) {
+      mChecksumInput = new byte[INFLATER_INPUT_SIZE];
+    }
+    ByteBuffer source = data.duplicate();
+    while (source.hasRemaining()) {
+      int count = Math.min(source.remaining(), mChecksumInput.length);
+      source.get(mChecksumInput, 0, count);
+      updateChecksum(mChecksumInput, 0, count, position);
+      position += count;
+    }
+  }
+
+  /**
+   * Add the stored data read at the given position to the checksum, and verify the checksum once
+   * all the stored data is read.
+   */
+  private void updateChecksum(byte[] buffer, int byteOffset, int byteCount, long position)
+          throws IOException {
+    if (mChecksum == null) {
+      return;
+    } else if (position == 0) {
+      mChecksum.reset();
+      mChecksumPosition = 0;
+    } else if (position != mChecksumPosition) {
+      // Part of the data was skipped, it can't be verified unless read again from the start.
+      mChecksumPosition = -1;
+      return;
+    }
+    mChecksum.update(buffer, byteOffset, byteCount);
+    mChecksumPosition += byteCount;
+    if (mChecksumPosition == mSnapshot.getLengthInBytes() &&
+            mChecksum.getValue() != mSnapshot.getChecksum()) {
+      mSnapshot.removeCorruptedEntry();
+      throw new IOException("Checksum mismatch, the entry data is corrupted.");
+    }
+  }
+
+  private int readInflated(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+    if (mInflatedPosition > mPosition) {
+      // Inflate again from the start.
+      mInflater.reset();
+      mInflatedPosition = 0;
+      mCompressedPosition = 0;
+    }
+    if (mInflatedPosition < mPosition) {
+      byte[] skipped = new byte[(int) Math.min(INFLATER_INPUT_SIZE, mPosition - mInflatedPosition)];
+      while (mInflatedPosition < mPosition) {
+        mInflatedPosition +=
+                inflate(skipped, 0, (int) Math.min(skipped.length, mPosition - mInflatedPosition));
+      }
+    }
+    int inflated = inflate(buffer, byteOffset, byteCount);
+    mInflatedPosition += inflated;
+    return inflated;
+  }
+
+  private int inflate(byte[] buffer, int byteOffset, int byteCount) throws IOException {
+    if (mInflaterInput == null) {
+      mInflaterInput = new byte[INFLATER_INPUT_SIZE];
+    }
+    try {
+      while (true) {
+        int inflated = mInflater.inflate(buffer, byteOffset, byteCount);
+        if (inflated > 0) {
+          return inflated;
+        } else if (mInflater.finished() || mInflater.needsDictionary()) {
+          throw new EOFException("The compressed entry data ends early.");
+        } else if (mInflater.needsInput()) {
+          int read = mSnapshot.read(ByteBuffer.wrap(mInflaterInput), mCompressedPosition);
+          if (read < 0) {
+            throw new EOFException("The compressed entry data is truncated.");
+          }
+          updateChecksum(mInflaterInput, 0, read, mCompressedPosition);
+          mCompressedPosition += read;
+          mInflater.setInput(mInflaterInput, 0, read);
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("The compressed entry data is corrupted: " + e.getMessage());
+    }
   }
 }
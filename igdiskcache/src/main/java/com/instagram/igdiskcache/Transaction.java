@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+
+package com.instagram.igdiskcache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Edits of several entries of an {@link IgDiskCache}, published all or nothing. Useful for related
+ * entries (e.g. a media and the manifest describing it) that must not be seen one without the
+ * other.
+ * <pre>
+ *   {@code
+ *      Transaction transaction = cache.beginTransaction();
+ *      try {
+ *        OptionalStream<EditorOutputStream> media = transaction.edit(mediaKey);
+ *        OptionalStream<EditorOutputStream> manifest = transaction.edit(manifestKey);
+ *        if (media.isPresent() && manifest.isPresent()) {
+ *          ... write to media.get() and manifest.get()
+ *          transaction.commit();
+ *        }
+ *      } finally {
+ *        transaction.abortUnlessCommitted();
+ *      }
+ *   }
+ * </pre>
+ *
+ * <p> Committing an EditorOutputStream of the Transaction only finishes writing its data. The
+ * edits are published together by {@link #commit()}, and logged in the journal as a single group
+ * of lines: if the app dies before the whole group is written, none of the entries is restored.
+ * Lookups see all the entries of the Transaction change at once, and the cache limits are checked
+ * once for the Transaction rather than after every entry.
+ */
+public final class Transaction {
+  private final IgDiskCache mCache;
+  // Guarded by this
+  private final List<EditorOutputStream> mEditors = new ArrayList<>();
+  private boolean mIsClosed;
+
+  /* package */ Transaction(IgDiskCache cache) {
+    mCache = cache;
+  }
+
+  /**
+   * Get the {@link EditorOutputStream} of the Entry with the given key, see
+   * {@link IgDiskCache#edit(String)}. The edit is published when the Transaction is committed.
+   * @throws IllegalArgumentException if key is not valid.
+   * @throws IllegalStateException if the Transaction is already committed or aborted, or if
+   * require edit on an entry that is currently under edit.
+   */
+  public synchronized OptionalStream<EditorOutputStream> edit(String key) {
+    checkNotClosed();
+    OptionalStream<EditorOutputStream> output = mCache.edit(key);
+    if (output.isPresent()) {
+      output.get().setInTransaction();
+      mEditors.add(output.get());
+    }
+    return output;
+  }
+
+  /**
+   * Publish the edits of the Transaction. The EditorOutputStreams that are still open get
+   * committed first.
+   * @return true if all the edits got published. If any EditorOutputStream of the Transaction
+   * got aborted or failed, none of the edits is published and the entries keep their previous
+   * values.
+   */
+  public synchronized boolean commit() {
+    checkNotClosed();
+    mIsClosed = true;
+    boolean isStaged = true;
+    for (EditorOutputStream editor : mEditors) {
+      isStaged &= editor.stageUnlessClosed();
+    }
+    if (!isStaged) {
+      discardEdits();
+      return false;
+    }
+    return mEditors.isEmpty() || mCache.commitTransaction(mEditors);
+  }
+
+  /**
+   * Abort the edits of the Transaction.
+   */
+  public synchronized void abort() {
+    checkNotClosed();
+    mIsClosed = true;
+    for (EditorOutputStream editor : mEditors) {
+      editor.abortUnlessCommitted();
+    }
+    discardEdits();
+  }
+
+  /**
+   * Abort the Transaction if it is not already committed. This is commonly used in the
+   * {@code finally} block of error try-catch to make sure the editors are properly closed.
+   */
+  public synchronized void abortUnlessCommitted() {
+    if (!mIsClosed) {
+      abort();
+    }
+  }
+
+  private void discardEdits() {
+    for (EditorOutputStream editor : mEditors) {
+      editor.discardIfStaged();
+    }
+  }
+
+  private void checkNotClosed() {
+    if (mIsClosed) {
+      throw new IllegalStateException(
+              "Try to operate on a Transaction that is already committed or aborted");
+    }
+  }
+}
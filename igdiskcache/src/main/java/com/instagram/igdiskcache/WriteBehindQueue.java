@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+
+package com.instagram.igdiskcache;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of the values put into the cache in write-behind mode, see
+ * {@link IgDiskCache#enableWriteBehind}. The values are written by worker threads, oldest first,
+ * and are served to readers from memory until they are written. A value put for a key that is
+ * still waiting replaces the queued value, so only the last one gets written.
+ * <p> The queue is bounded by the bytes it holds. When it is full, producers either wait for room
+ * or have their value dropped and counted.
+ * <p> Once the queue is draining (see {@link #drain()}), a value put is written in the calling
+ * thread before put returns, after the values queued for the same key.
+ */
+/* package */ final class WriteBehindQueue {
+  private final IgDiskCache mCache;
+  private final long mMaxQueuedBytes;
+  private final int mWorkerCount;
+  private final boolean mIsBlockingWhenFull;
+  private final ThreadPoolExecutor mExecutor;
+  // Guarded by this. Values are kept here until written, even while being written.
+  private final LinkedHashMap<String, byte[]> mPendingValues = new LinkedHashMap<>();
+  private final Map<String, byte[]> mWritingValues = new HashMap<>();
+  // Bytes of the pending values, and of the values being written that got replaced since
+  private long mQueuedBytes;
+  private int mActiveWorkers;
+  private long mDroppedCount;
+  private boolean mIsDraining;
+
+  private final Runnable mWriteRunnable = new Runnable() {
+    @Override
+    public void run() {
+      boolean isStopped = false;
+      try {
+        Map.Entry<String, byte[]> pending;
+        while ((pending = takeNextPending(true)) != null) {
+          write(pending.getKey(), pending.getValue());
+        }
+        isStopped = true;
+      } finally {
+        if (!isStopped) {
+          // A write threw: give the worker slot back, and go on with the other values.
+          releaseWorker();
+        }
+      }
+    }
+  };
+
+  /* package */ WriteBehindQueue(
+          IgDiskCache cache,
+          long maxQueuedBytes,
+          int workerCount,
+          boolean isBlockingWhenFull) {
+    mCache = cache;
+    mMaxQueuedBytes = maxQueuedBytes;
+    mWorkerCount = workerCount;
+    mIsBlockingWhenFull = isBlockingWhenFull;
+    mExecutor = new ThreadPoolExecutor(
+            workerCount,
+            workerCount,
+            60L,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    mExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Queue a value to be written as the Entry with the given key. The array is kept as is, it must
+   * not be modified afterwards. While the queue is draining, the value is written before this
+   * returns.
+   * @return false if the queue is full and the value got dropped, or if the thread got
+   * interrupted while waiting for room.
+   */
+  /* package */ boolean put(String key, byte[] value) {
+    boolean isDraining;
+    synchronized (this) {
+      if (!enqueue(key, value)) {
+        return false;
+      }
+      isDraining = mIsDraining;
+    }
+    if (isDraining) {
+      writeNow(key);
+    }
+    return true;
+  }
+
+  private boolean enqueue(String key, byte[] value) {
+    // A value larger than the whole queue is only accepted once the queue is empty. While
+    // draining, the caller writes the value right away, there is no need to wait for room.
+    long keptBytes;
+    while (!mIsDraining && (keptBytes = mQueuedBytes - getReplacedBytes(key)) > 0 &&
+            keptBytes + value.length > mMaxQueuedBytes) {
+      if (!mIsBlockingWhenFull) {
+        mDroppedCount++;
+        return false;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        mDroppedCount++;
+        return false;
+      }
+    }
+    mQueuedBytes += value.length - getReplacedBytes(key);
+    mPendingValues.put(key, value);
+    startWorkerLocked();
+    return true;
+  }
+
+  private void startWorkerLocked() {
+    if (!mIsDraining && mActiveWorkers < mWorkerCount) {
+      mActiveWorkers++;
+      mExecutor.execute(mWriteRunnable);
+    }
+  }
+
+  private synchronized void releaseWorker() {
+    mActiveWorkers--;
+    if (!mPendingValues.isEmpty()) {
+      startWorkerLocked();
+    }
+  }
+
+  /**
+   * Get the value queued for the given key, or null if there is none.
+   */
+  /* package */ synchronized byte[] get(String key) {
+    return mPendingValues.get(key);
+  }
+
+  /**
+   * Make sure the value queued for the given key is written before returning, writing it in the
+   * calling thread unless a worker already is. Used before reading the Entry from disk.
+   */
+  /* package */ void writeNow(String key) {
+    byte[] value;
+    synchronized (this) {
+      if (!awaitNotWriting(key)) {
+        return;
+      }
+      value = mPendingValues.get(key);
+      if (value == null) {
+        return;
+      }
+      mWritingValues.put(key, value);
+    }
+    write(key, value);
+  }
+
+  /**
+   * Drop the value queued for the given key, after the value being written, if any, got written.
+   */
+  /* package */ synchronized void discard(String key) {
+    if (awaitNotWriting(key)) {
+      byte[] value = mPendingValues.remove(key);
+      if (value != null) {
+        mQueuedBytes -= value.length;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Write all the queued values before returning, in the calling thread, and have the values put
+   * from now on written by the threads putting them.
+   */
+  /* package */ void drain() {
+    synchronized (this) {
+      mIsDraining = true;
+    }
+    writeAll();
+  }
+
+  /**
+   * Write all the queued values before returning, in the calling thread.
+   */
+  /* package */ void writeAll() {
+    while (true) {
+      Map.Entry<String, byte[]> pending = takeNextPending(false);
+      if (pending != null) {
+        write(pending.getKey(), pending.getValue());
+        continue;
+      }
+      synchronized (this) {
+        if (mPendingValues.isEmpty() && mWritingValues.isEmpty()) {
+          return;
+        } else if (!mWritingValues.isEmpty()) {
+          // A value put for a key while it is written is pending again once the write is done.
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+      }
+    }
+  }
+
+  /* package */ synchronized long getDroppedCount() {
+    return mDroppedCount;
+  }
+
+  /**
+   * Get the bytes freed by replacing the value queued for the key, which is only freed now if it
+   * is not being written.
+   */
+  private long getReplacedBytes(String key) {
+    byte[] replaced = mPendingValues.get(key);
+    return replaced != null && mWritingValues.get(key) != replaced ? replaced.length : 0;
+  }
+
+  /**
+   * Take the oldest queued value that is not being written already.
+   * @return null if there is none, in which case a worker stops. The worker slot is released
+   * under the same lock, so that a value queued right after gets a worker of its own.
+   */
+  private synchronized Map.Entry<String, byte[]> takeNextPending(boolean isWorker) {
+    for (Map.Entry<String, byte[]> pending : mPendingValues.entrySet()) {
+      if (!mWritingValues.containsKey(pending.getKey())) {
+        mWritingValues.put(pending.getKey(), pending.getValue());
+        // The map entry gets the next value put for the key, hand out the value taken now.
+        return new AbstractMap.SimpleImmutableEntry<>(pending);
+      }
+    }
+    if (isWorker) {
+      mActiveWorkers--;
+    }
+    return null;
+  }
+
+  private void write(String key, byte[] value) {
+    try {
+      mCache.writeQueuedValue(key, value);
+    } finally {
+      synchronized (this) {
+        mWritingValues.remove(key);
+        mQueuedBytes -= value.length;
+        if (mPendingValues.get(key) == value) {
+          mPendingValues.remove(key);
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Wait until no thread is writing a value of the given key.
+   * @return false if the thread got interrupted while waiting.
+   */
+  private boolean awaitNotWriting(String key) {
+    while (mWritingValues.containsKey(key)) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+}
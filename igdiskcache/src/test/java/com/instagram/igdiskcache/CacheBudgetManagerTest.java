@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.instagram.igdiskcache;
+
+import android.annotation.SuppressLint;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.spy;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@PrepareForTest({Looper.class})
+public class CacheBudgetManagerTest extends RobolectricBaseTest {
+  private IgDiskCache mCacheA;
+  private IgDiskCache mCacheB;
+  private CacheBudgetManager mBudgetManager;
+
+  @Rule
+  public TemporaryFolder tempDir = new TemporaryFolder();
+
+  @Before
+  public void setUp() throws Exception {
+    Looper looper = mock(Looper.class);
+    when(looper.getThread()).thenReturn(mock(Thread.class));
+    spy(Looper.class);
+    when(Looper.getMainLooper()).thenReturn(looper);
+    mCacheA = new IgDiskCache(tempDir.newFolder("CacheA"), Integer.MAX_VALUE);
+    mCacheB = new IgDiskCache(tempDir.newFolder("CacheB"), Integer.MAX_VALUE);
+    mBudgetManager = new CacheBudgetManager(1000);
+  }
+
+  @Test
+  public void budgetIsSplitEvenlyWithoutTraffic() throws Exception {
+    mBudgetManager.register(mCacheA);
+    assertThat(mCacheA.getMaxSizeInBytes()).isEqualTo(1000);
+    mBudgetManager.register(mCacheB);
+    assertThat(mCacheA.getMaxSizeInBytes()).isEqualTo(500);
+    assertThat(mCacheB.getMaxSizeInBytes()).isEqualTo(500);
+  }
+
+  @Test
+  public void busyCacheGetsMoreBudget() throws Exception {
+    mBudgetManager.register(mCacheA);
+    mBudgetManager.register(mCacheB);
+    IgDiskCacheTest.set(mCacheA, "a", "a");
+    for (int i = 0; i < 10; i++) {
+      mCacheA.get("a").get().close();
+    }
+    mCacheB.get("b");
+    mBudgetManager.rebalance();
+
+    long shareA = mCacheA.getMaxSizeInBytes();
+    long shareB = mCacheB.getMaxSizeInBytes();
+    assertThat(shareA).isGreaterThan(shareB);
+    assertThat(shareB).isGreaterThanOrEqualTo(125); // minimum share of an idle cache
+    assertThat(shareA + shareB).isLessThanOrEqualTo(1000);
+  }
+
+  @Test
+  public void budgetGoesToCacheWithMarginalGain() throws Exception {
+    CacheBudgetManager budgetManager = new CacheBudgetManager(100 * 1024);
+    budgetManager.register(mCacheA);
+    budgetManager.register(mCacheB);
+    // A hits more often, but its working set already fits in its minimum share.
+    IgDiskCacheTest.set(mCacheA, "a", "a");
+    for (int i = 0; i < 20; i++) {
+      mCacheA.get("a").get().close();
+    }
+    // B needs about 20KB to turn its reads into hits.
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < 5 * 1024; i++) {
+      value.append('b');
+    }
+    for (int i = 0; i < 4; i++) {
+      IgDiskCacheTest.set(mCacheB, "b" + i, value.toString());
+    }
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < 4; i++) {
+        mCacheB.get("b" + i).get().close();
+      }
+    }
+    budgetManager.rebalance();
+
+    long shareA = mCacheA.getMaxSizeInBytes();
+    long shareB = mCacheB.getMaxSizeInBytes();
+    assertThat(shareB).isGreaterThan(shareA);
+    assertThat(shareB).isGreaterThanOrEqualTo(20 * 1024);
+    assertThat(shareA + shareB).isLessThanOrEqualTo(100 * 1024);
+  }
+
+  @Test
+  public void shrinkingShareTrimsCache() throws Exception {
+    mBudgetManager.register(mCacheA);
+    IgDiskCacheTest.set(mCacheA, "a", "aaaaaaaaaa");
+    mCacheA.get("a").get().close();
+    mBudgetManager.register(mCacheB);
+    for (int i = 0; i < 10; i++) {
+      IgDiskCacheTest.set(mCacheB, "b" + i, "bbbbbbbbbb");
+      mCacheB.get("b" + i).get().close();
+    }
+    mBudgetManager.rebalance();
+    mCacheA.flush();
+    assertThat(mCacheA.size()).isLessThanOrEqualTo(mCacheA.getMaxSizeInBytes());
+  }
+
+  @SuppressLint("EmptyCatchBlock")
+  @Test
+  public void cacheCannotRegisterTwice() throws Exception {
+    mBudgetManager.register(mCacheA);
+    try {
+      new CacheBudgetManager(1000).register(mCacheA);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    mBudgetManager.unregister(mCacheA);
+    new CacheBudgetManager(1000).register(mCacheA);
+  }
+}
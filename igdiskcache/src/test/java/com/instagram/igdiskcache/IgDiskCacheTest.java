@@ -8,6 +8,8 @@
  */
 package com.instagram.igdiskcache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -17,6 +19,10 @@ import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
@@ -569,6 +575,873 @@ public final class IgDiskCacheTest extends RobolectricBaseTest {
     assertThat(exception1 ^ exception2); //one of these two should be true.
   }
 
+  @Test
+  public void partitionTracksItsOwnEntries() throws Exception {
+    CachePartition feed = mCache.addPartition("feed", 100, 10);
+    set(mCache, feed.key("a"), "aaa");
+    set(mCache, "b", "bb");
+    assertThat(feed.count()).isEqualTo(1);
+    assertThat(feed.size()).isEqualTo(3);
+    assertThat(mCache.count()).isEqualTo(2);
+    assertThat(mCache.size()).isEqualTo(5);
+    assertValue(mCache, feed.key("a"), "aaa");
+    mCache.remove(feed.key("a"));
+    assertThat(feed.count()).isEqualTo(0);
+    assertThat(feed.size()).isEqualTo(0);
+  }
+
+  @SuppressLint("EmptyCatchBlock")
+  @Test
+  public void unknownPartitionNotPermitted() throws Exception {
+    try {
+      mCache.edit("unknown.a");
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void partitionBorrowsUnusedQuota() throws Exception {
+    mCache = new IgDiskCache(mCacheDir, 10);
+    CachePartition feed = mCache.addPartition("feed", 4, 100);
+    CachePartition stories = mCache.addPartition("stories", 6, 100);
+    set(mCache, feed.key("a"), "aaaa");
+    set(mCache, feed.key("b"), "bbbb"); // feed is over its quota, but the cache is not full.
+    mCache.flush();
+    assertThat(feed.size()).isEqualTo(8);
+
+    // Causing the size to grow to 11 should evict from the borrowing partition.
+    set(mCache, stories.key("c"), "ccc");
+    mCache.flush();
+    assertThat(mCache.size()).isEqualTo(7);
+    assertAbsent(mCache, feed.key("a"));
+    assertValue(mCache, feed.key("b"), "bbbb");
+    assertValue(mCache, stories.key("c"), "ccc");
+  }
+
+  @Test
+  public void partitionHonorsLruInsidePartition() throws Exception {
+    mCache = new IgDiskCache(mCacheDir, 4);
+    CachePartition feed = mCache.addPartition("feed", 2, 100);
+    set(mCache, feed.key("a"), "a");
+    set(mCache, "x", "x");
+    set(mCache, feed.key("b"), "b");
+    set(mCache, feed.key("c"), "c");
+    mCache.get(feed.key("a")).get().close(); // 'b' is now least recently used in 'feed'.
+
+    // Causing the size to grow to 5 should evict 'b' rather than the globally older 'x'.
+    set(mCache, feed.key("d"), "d");
+    mCache.flush();
+    assertThat(mCache.size()).isEqualTo(4);
+    assertAbsent(mCache, feed.key("b"));
+    assertValue(mCache, "x", "x");
+  }
+
+  @Test
+  public void partitionAdoptsEntriesAfterCacheReOpen() throws Exception {
+    CachePartition feed = mCache.addPartition("feed", 100, 10);
+    set(mCache, feed.key("a"), "aaa");
+    mCache.close();
+    mCache = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    feed = mCache.addPartition("feed", 100, 10);
+    assertThat(feed.count()).isEqualTo(1);
+    assertThat(feed.size()).isEqualTo(3);
+    assertValue(mCache, feed.key("a"), "aaa");
+  }
+
+  @Test
+  public void shrinkMaxCount() throws Exception {
+    set(mCache, "a", "a");
+    set(mCache, "b", "b");
+    set(mCache, "c", "c");
+    mCache.setMaxCount(2);
+    mCache.flush();
+    assertThat(mCache.count()).isEqualTo(2);
+    assertAbsent(mCache, "a");
+    assertValue(mCache, "b", "b");
+    assertValue(mCache, "c", "c");
+  }
+
+  @Test
+  public void freeSpaceTrackingGrowsUpToMaxBound() throws Exception {
+    mCache.enableFreeSpaceTracking(10, 100, 0);
+    assertThat(mCache.getMaxSizeInBytes()).isEqualTo(100);
+    assertThat(mCache.getEffectiveMaxSizeInBytes()).isEqualTo(100);
+    set(mCache, "a", "a");
+    assertValue(mCache, "a", "a");
+  }
+
+  @Test
+  public void freeSpaceTrackingRejectsWritesWhenLowOnSpace() throws Exception {
+    set(mCache, "a", "aaa");
+    mCache.enableFreeSpaceTracking(1, 100, Long.MAX_VALUE / 2);
+    assertThat(mCache.getEffectiveMaxSizeInBytes()).isEqualTo(1);
+    assertThat(mCache.edit("b").isPresent()).isFalse();
+    mCache.flush();
+    assertAbsent(mCache, "a");
+
+    mCache.disableFreeSpaceTracking();
+    assertThat(mCache.getEffectiveMaxSizeInBytes()).isEqualTo(100);
+    set(mCache, "b", "b");
+    assertValue(mCache, "b", "b");
+  }
+
+  @Test
+  public void estimateHitRateCurve() throws Exception {
+    assertThat(mCache.getEstimatedHitRateCurve()).isNull();
+    mCache.setHitRateEstimationEnabled(true);
+    for (int i = 0; i < 3; i++) {
+      assertThat(mCache.get("k" + i).isPresent()).isFalse();
+      set(mCache, "k" + i, "value");
+    }
+    for (int i = 0; i < 3; i++) {
+      mCache.get("k" + i).get().close();
+    }
+    HitRateCurve curve = mCache.getEstimatedHitRateCurve();
+    assertThat(curve.getReferenceCount()).isEqualTo(6);
+    assertThat(curve.getHitRate(Integer.MAX_VALUE)).isEqualTo(0.5f);
+  }
+
+  @Test
+  public void editWithExpectedSizeEvictsAheadOfWrite() throws Exception {
+    mCache = new IgDiskCache(mCacheDir, 10);
+    set(mCache, "a", "aaaa");
+    set(mCache, "b", "bbbb");
+    EditorOutputStream c = mCache.edit("c", 5).get();
+    assertThat(mCache.getReservedSizeInBytes()).isEqualTo(5);
+    assertAbsent(mCache, "a");
+    assertValue(mCache, "b", "bbbb");
+    writeToOutputStream(c, "ccccc");
+    assertThat(c.commit()).isTrue();
+    assertThat(mCache.getReservedSizeInBytes()).isEqualTo(0);
+    assertThat(mCache.size()).isEqualTo(9);
+  }
+
+  @Test
+  public void reservationDoesNotEvictEntriesUnderEdit() throws Exception {
+    mCache = new IgDiskCache(mCacheDir, 10);
+    set(mCache, "c", "ccc");
+    EditorOutputStream c = mCache.edit("c", 9).get();
+    // The old value of "c" gets replaced by the new one, only the growth is reserved.
+    assertThat(mCache.getReservedSizeInBytes()).isEqualTo(6);
+    set(mCache, "a", "aaaaa");
+    mCache.flush();
+    assertAbsent(mCache, "a");
+    writeToOutputStream(c, "ccccccccc");
+    assertThat(c.commit()).isTrue();
+    assertValue(mCache, "c", "ccccccccc");
+    assertThat(mCache.count()).isEqualTo(1);
+    assertThat(mCache.size()).isEqualTo(9);
+    assertThat(mCache.getReservedSizeInBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void abortReleasesReservation() throws Exception {
+    EditorOutputStream a = mCache.edit("a", 100).get();
+    assertThat(mCache.getReservedSizeInBytes()).isEqualTo(100);
+    a.abort();
+    assertThat(mCache.getReservedSizeInBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void entryLargerThanMaxEntrySizeIsRejected() throws Exception {
+    mCache.setMaxEntrySizeInBytes(3);
+    assertThat(mCache.edit("a", 4).isPresent()).isFalse();
+    set(mCache, "a", "aaa");
+    EditorOutputStream a = mCache.edit("a").get();
+    writeToOutputStream(a, "aaaa");
+    assertThat(a.commit()).isFalse();
+    assertAbsent(mCache, "a");
+    assertThat(mCache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void tombstoneIsKnownAbsent() throws Exception {
+    set(mCache, "a", "aaa");
+    mCache.putTombstone("a", 60 * 1000);
+    OptionalStream<SnapshotInputStream> in = mCache.get("a");
+    assertThat(in.isPresent()).isFalse();
+    assertThat(in.isKnownAbsent()).isTrue();
+    assertThat(mCache.has("a")).isFalse();
+    assertThat(mCache.isKnownAbsent("a")).isTrue();
+    assertThat(mCache.size()).isEqualTo(0);
+    assertThat(getCleanFile("a")).doesNotExist();
+    assertThat(mCache.get("b").isKnownAbsent()).isFalse();
+  }
+
+  @Test
+  public void expiredTombstoneIsDropped() throws Exception {
+    mCache.putTombstone("a", 0);
+    assertThat(mCache.isKnownAbsent("a")).isFalse();
+    assertThat(mCache.get("a").isKnownAbsent()).isFalse();
+    assertThat(mCache.count()).isEqualTo(0);
+  }
+
+  @Test
+  public void tombstoneSurvivesCacheReOpen() throws Exception {
+    mCache.putTombstone("a", 60 * 1000);
+    mCache.putTombstone("b", 0);
+    mCache.close();
+    mCache = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    assertThat(mCache.isKnownAbsent("a")).isTrue();
+    assertThat(mCache.count()).isEqualTo(1);
+  }
+
+  @Test
+  public void editReplacesTombstone() throws Exception {
+    mCache.putTombstone("a", 60 * 1000);
+    set(mCache, "a", "aaa");
+    assertThat(mCache.isKnownAbsent("a")).isFalse();
+    assertValue(mCache, "a", "aaa");
+  }
+
+  @Test
+  public void abortedEditKeepsTombstone() throws Exception {
+    mCache.putTombstone("a", 60 * 1000);
+    mCache.edit("a").get().abort();
+    assertThat(mCache.isKnownAbsent("a")).isTrue();
+    // Reopen without closing, the journal is replayed as it was written.
+    mCache = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    assertThat(mCache.isKnownAbsent("a")).isTrue();
+  }
+
+  @Test
+  public void smallEntriesArePackedIntoSegment() throws Exception {
+    mCache.setMaxPackedEntrySizeInBytes(10);
+    set(mCache, "a", "aaa");
+    set(mCache, "b", "bbbbbbbbbbbb");
+    assertValueWithoutCleanFile(mCache, "a", "aaa");
+    assertValue(mCache, "b", "bbbbbbbbbbbb");
+    assertThat(getCleanFile("a")).doesNotExist();
+    assertThat(getCleanFile("b")).exists();
+    assertThat(new File(mCacheDir, "0" + SegmentStore.SEGMENT_FILE_EXTENSION)).exists();
+    assertThat(mCache.size()).isEqualTo(15);
+    mCache.remove("a");
+    assertAbsent(mCache, "a");
+    assertThat(mCache.size()).isEqualTo(12);
+  }
+
+  @Test
+  public void packedEntrySurvivesCacheReOpen() throws Exception {
+    mCache.setMaxPackedEntrySizeInBytes(10);
+    set(mCache, "a", "aaa");
+    set(mCache, "b", "bb");
+    set(mCache, "a", "aaaa");
+    mCache.close();
+    mCache = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    assertValueWithoutCleanFile(mCache, "a", "aaaa");
+    assertValueWithoutCleanFile(mCache, "b", "bb");
+    assertThat(mCache.size()).isEqualTo(6);
+  }
+
+  @Test
+  public void removedPackedEntryIsNotRestoredWithoutClose() throws Exception {
+    mCache.setMaxPackedEntrySizeInBytes(10);
+    set(mCache, "a", "aaa");
+    mCache.close();
+    mCache = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    mCache.remove("a");
+    assertThat(new File(mCacheDir, "0" + SegmentStore.SEGMENT_FILE_EXTENSION)).doesNotExist();
+    // Reopen without closing, as if the app got killed.
+    mCache = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    mCache.setMaxPackedEntrySizeInBytes(10);
+    set(mCache, "b", "bbb");
+    assertAbsent(mCache, "a");
+    assertValueWithoutCleanFile(mCache, "b", "bbb");
+    // The id of the deleted segment is still in the journal, it is not reused.
+    assertThat(new File(mCacheDir, "1" + SegmentStore.SEGMENT_FILE_EXTENSION)).exists();
+  }
+
+  @Test
+  public void packedEntryHasNoFileDescriptor() throws Exception {
+    mCache.setMaxPackedEntrySizeInBytes(10);
+    set(mCache, "a", "aaa");
+    set(mCache, "b", "bbb");
+    SnapshotInputStream in = mCache.get("a").get();
+    try {
+      in.getFD();
+      fail();
+    } catch (IOException e) {
+      // Expected: the segment file also holds the data of "b".
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void packedEntryReplacesFileEntry() throws Exception {
+    set(mCache, "a", "aaa");
+    mCache.setMaxPackedEntrySizeInBytes(10);
+    set(mCache, "a", "a");
+    assertValueWithoutCleanFile(mCache, "a", "a");
+    assertThat(getCleanFile("a")).doesNotExist();
+    assertThat(mCache.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void largeEntriesAreChunked() throws Exception {
+    mCache.setChunkSizeInBytes(4);
+    set(mCache, "a", "aaaabbbbcc");
+    OptionalStream<SnapshotInputStream> in = mCache.get("a");
+    assertThat(in.isPresent()).isTrue();
+    assertThat(in.get().isComplete()).isTrue();
+    assertThat(readFromInputStream(in.get())).isEqualTo("aaaabbbbcc");
+    in.get().close();
+    assertThat(getCleanFile("a")).doesNotExist();
+    assertThat(countChunkFiles()).isEqualTo(3);
+    assertThat(mCache.size()).isEqualTo(10);
+    mCache.remove("a");
+    assertThat(countChunkFiles()).isEqualTo(0);
+    assertThat(mCache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void identicalChunksAreStoredOnce() throws Exception {
+    mCache.setChunkSizeInBytes(4);
+    set(mCache, "a", "aaaabbbbcc");
+    set(mCache, "b", "aaaabbbbdd");
+    assertThat(countChunkFiles()).isEqualTo(4);
+    mCache.remove("a");
+    assertThat(countChunkFiles()).isEqualTo(3);
+    assertValueWithoutCleanFile(mCache, "b", "aaaabbbbdd");
+  }
+
+  @Test
+  public void chunkedEntryIsEvictedFromTail() throws Exception {
+    mCache.setChunkSizeInBytes(4);
+    set(mCache, "a", "aaaabbbbcc");
+    mCache.setMaxSizeInBytes(6);
+    mCache.flush();
+    OptionalStream<SnapshotInputStream> in = mCache.get("a");
+    assertThat(in.isPresent()).isTrue();
+    assertThat(in.get().isComplete()).isFalse();
+    assertThat(readFromInputStream(in.get())).isEqualTo("aaaa");
+    in.get().close();
+    assertThat(mCache.size()).isEqualTo(4);
+  }
+
+  @Test
+  public void chunkedEntryIsRemovedWholeWhenOverCount() throws Exception {
+    mCache.setChunkSizeInBytes(4);
+    set(mCache, "a", "aaaabbbbcc");
+    set(mCache, "b", "b");
+    mCache.setMaxCount(1);
+    mCache.flush();
+    assertAbsent(mCache, "a");
+    assertValue(mCache, "b", "b");
+    assertThat(countChunkFiles()).isEqualTo(0);
+    assertThat(mCache.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void snapshotKeepsChunksOfRemovedEntry() throws Exception {
+    mCache.setChunkSizeInBytes(4);
+    set(mCache, "a", "aaaabbbbcc");
+    OptionalStream<SnapshotInputStream> in = mCache.get("a");
+    mCache.remove("a");
+    assertThat(readFromInputStream(in.get())).isEqualTo("aaaabbbbcc");
+    in.get().close();
+    assertThat(countChunkFiles()).isEqualTo(0);
+  }
+
+  @Test
+  public void chunkedEntrySurvivesCacheReOpen() throws Exception {
+    mCache.setChunkSizeInBytes(4);
+    set(mCache, "a", "aaaabbbbcc");
+    mCache.close();
+    mCache = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    assertValueWithoutCleanFile(mCache, "a", "aaaabbbbcc");
+    assertThat(mCache.size()).isEqualTo(10);
+  }
+
+  @Test
+  public void identicalEntriesAreStoredOnce() throws Exception {
+    mCache.setDeduplicationEnabled(true);
+    set(mCache, "a", "aaaa");
+    set(mCache, "b", "aaaa");
+    set(mCache, "c", "bbbbbb");
+    assertThat(countChunkFiles()).isEqualTo(2);
+    assertThat(mCache.size()).isEqualTo(10);
+    mCache.close();
+    mCache = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    assertThat(mCache.size()).isEqualTo(10);
+    mCache.remove("a");
+    assertThat(mCache.size()).isEqualTo(10);
+    assertValueWithoutCleanFile(mCache, "b", "aaaa");
+    mCache.remove("b");
+    assertThat(countChunkFiles()).isEqualTo(1);
+    assertThat(mCache.size()).isEqualTo(6);
+    assertValueWithoutCleanFile(mCache, "c", "bbbbbb");
+  }
+
+  @Test
+  public void compressibleEntryIsCompressed() throws Exception {
+    mCache.setCompressionEnabled(true);
+    StringBuilder value = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      value.append("abc");
+    }
+    set(mCache, "a", value.toString());
+    set(mCache, "b", "short");
+    assertValue(mCache, "a", value.toString());
+    assertValue(mCache, "b", "short");
+    assertThat(mCache.size()).isLessThan(1000);
+    assertThat(getCleanFile("b").length()).isEqualTo(5);
+    OptionalStream<SnapshotInputStream> in = mCache.get("a", 3000, 6);
+    assertThat(in.get().getLengthInBytes()).isEqualTo(6000);
+    assertThat(readFromInputStream(in.get())).isEqualTo("abcabc");
+    in.get().close();
+    assertThat(mCache.map("a").isPresent()).isFalse();
+    assertThat(mCache.getRandomAccess("a").isPresent()).isFalse();
+    mCache.close();
+    mCache = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    assertValue(mCache, "a", value.toString());
+  }
+
+  @Test
+  public void corruptedEntryIsRemovedOnRead() throws Exception {
+    set(mCache, "a", "abcdef");
+    writeFile(getCleanFile("a"), "abcdeX");
+    OptionalStream<SnapshotInputStream> in = mCache.get("a");
+    assertThat(in.isPresent()).isTrue();
+    assertThat(readFromInputStream(in.get())).isNull();
+    assertThat(mCache.has("a")).isFalse();
+    assertAbsent(mCache, "a");
+  }
+
+  @SuppressLint("EmptyCatchBlock")
+  @Test
+  public void corruptedEntryIsRemovedOnGetInto() throws Exception {
+    set(mCache, "a", "abcdef");
+    writeFile(getCleanFile("a"), "abcdeX");
+    try {
+      mCache.getInto("a", ByteBuffer.allocate(6));
+      fail();
+    } catch (IOException expected) {
+    }
+    assertThat(mCache.has("a")).isFalse();
+    assertAbsent(mCache, "a");
+  }
+
+  @Test
+  public void truncatedEntryIsRemovedOnGet() throws Exception {
+    set(mCache, "a", "abcdef");
+    writeFile(getCleanFile("a"), "abc");
+    assertAbsent(mCache, "a");
+    assertThat(mCache.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void entryHoldsSeveralValues() throws Exception {
+    mCache.setValueCount(2);
+    EditorOutputStream out = mCache.edit("a").get();
+    out.write("header".getBytes());
+    out.nextValue();
+    out.write("body".getBytes());
+    try {
+      out.nextValue();
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected: the entry only holds 2 values.
+    }
+    assertThat(out.commit()).isTrue();
+    assertValue(mCache, "a", "header");
+    OptionalStream<SnapshotInputStream> in = mCache.getValue("a", 1);
+    assertThat(in.get().getLengthInBytes()).isEqualTo(4);
+    assertThat(readFromInputStream(in.get())).isEqualTo("body");
+    in.get().close();
+    in = mCache.getValue("a", 2);
+    assertThat(in.get().getLengthInBytes()).isEqualTo(0);
+    in.get().close();
+    mCache.close();
+    mCache = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    in = mCache.getValue("a", 1);
+    assertThat(readFromInputStream(in.get())).isEqualTo("body");
+    in.get().close();
+  }
+
+  @Test
+  public void metadataIsPublishedWithEntry() throws Exception {
+    EditorOutputStream out = mCache.edit("a", "etag-1".getBytes()).get();
+    out.write("abc".getBytes());
+    assertThat(mCache.getMetadata("a").isPresent()).isFalse();
+    assertThat(out.commit()).isTrue();
+    assertThat(new String(mCache.getMetadata("a").get())).isEqualTo("etag-1");
+    assertValue(mCache, "a", "abc");
+    mCache.close();
+    mCache = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    assertThat(new String(mCache.getMetadata("a").get())).isEqualTo("etag-1");
+    set(mCache, "a", "def");
+    assertThat(mCache.getMetadata("a").isPresent()).isFalse();
+    try {
+      mCache.edit("b", new byte[IgDiskCache.MAX_METADATA_SIZE_IN_BYTES + 1]);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // Expected: the metadata is too large.
+    }
+  }
+
+  @Test
+  public void expectedSizeDoesNotExtendFile() throws Exception {
+    EditorOutputStream out = mCache.edit("a", 100).get();
+    for (byte b : "abc".getBytes()) {
+      out.write(b);
+    }
+    out.flush();
+    assertThat(getDirtyFile("a").length()).isEqualTo(3);
+    assertThat(out.commit()).isTrue();
+    assertValue(mCache, "a", "abc");
+    assertThat(getCleanFile("a").length()).isEqualTo(3);
+    assertThat(mCache.size()).isEqualTo(3);
+  }
+
+  @Test
+  public void readFullyReadsRestOfEntry() throws Exception {
+    set(mCache, "a", "abcdef");
+    SnapshotInputStream in = mCache.get("a").get();
+    assertThat(in.read()).isEqualTo('a');
+    ByteBuffer buffer = in.readFully();
+    assertThat(new String(buffer.array(), 0, buffer.remaining())).isEqualTo("bcdef");
+    assertThat(in.readFully(ByteBuffer.allocate(4))).isEqualTo(-1);
+    in.close();
+    in = mCache.get("a", 1, 3).get();
+    buffer = ByteBuffer.allocateDirect(10);
+    assertThat(in.readFully(buffer)).isEqualTo(3);
+    buffer.flip();
+    assertThat(buffer.get()).isEqualTo((byte) 'b');
+    in.close();
+  }
+
+  @Test
+  public void putAndGetBytes() throws Exception {
+    assertThat(mCache.put("a", "abc".getBytes())).isTrue();
+    assertValue(mCache, "a", "abc");
+    assertThat(new String(mCache.getBytes("a").get())).isEqualTo("abc");
+    assertThat(mCache.getBytes("b").isPresent()).isFalse();
+    ByteBuffer value = ByteBuffer.allocateDirect(4);
+    value.put("defg".getBytes()).flip();
+    assertThat(mCache.put("b", value)).isTrue();
+    assertThat(value.remaining()).isEqualTo(4);
+    ByteBuffer destination = ByteBuffer.allocate(3);
+    assertThat(mCache.getInto("b", destination)).isEqualTo(4);
+    assertThat(destination.position()).isEqualTo(0);
+    assertThat(mCache.getInto("a", destination)).isEqualTo(3);
+    assertThat(new String(destination.array())).isEqualTo("abc");
+    assertThat(mCache.getInto("c", destination)).isEqualTo(-1);
+  }
+
+  @Test
+  public void putFileMovesFileIntoCache() throws Exception {
+    File file = tempDir.newFile("download");
+    writeFile(file, "abcdef");
+    assertThat(mCache.putFile("a", file)).isTrue();
+    assertThat(file.exists()).isFalse();
+    assertValue(mCache, "a", "abcdef");
+    assertThat(mCache.size()).isEqualTo(6);
+    assertThat(mCache.putFile("b", file)).isFalse();
+  }
+
+  @Test
+  public void putFromChannel() throws Exception {
+    ReadableByteChannel source =
+            Channels.newChannel(new ByteArrayInputStream("abcdef".getBytes()));
+    assertThat(mCache.put("a", source, 4)).isTrue();
+    assertValue(mCache, "a", "abcd");
+    assertThat(mCache.put("b", source, 4)).isFalse();
+    assertThat(mCache.has("b")).isFalse();
+  }
+
+  @Test
+  public void editIfAbsentAndEditIfVersion() throws Exception {
+    OptionalStream<EditorOutputStream> out = mCache.editIfAbsent("a");
+    assertThat(out.isPresent()).isTrue();
+    assertThat(mCache.editIfAbsent("a").isPresent()).isFalse();
+    assertThat(mCache.getVersion("a")).isEqualTo(0);
+    writeToOutputStream(out.get(), "a1");
+    out.get().commit();
+    assertThat(mCache.editIfAbsent("a").isPresent()).isFalse();
+    assertThat(mCache.getVersion("a")).isEqualTo(1);
+    set(mCache, "a", "a2");
+    assertThat(mCache.getVersion("a")).isEqualTo(2);
+    OptionalStream<SnapshotInputStream> in = mCache.get("a");
+    assertThat(in.get().getVersion()).isEqualTo(2);
+    in.get().close();
+    assertThat(mCache.editIfVersion("a", 1).isPresent()).isFalse();
+    out = mCache.editIfVersion("a", 2);
+    writeToOutputStream(out.get(), "a3");
+    out.get().commit();
+    assertValue(mCache, "a", "a3");
+    mCache.close();
+    mCache = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    assertThat(mCache.getVersion("a")).isEqualTo(3);
+    mCache.remove("a");
+    assertThat(mCache.getVersion("a")).isEqualTo(0);
+    assertThat(mCache.editIfAbsent("a").isPresent()).isTrue();
+  }
+
+  @Test
+  public void versionIsNotReusedAfterRemove() throws Exception {
+    set(mCache, "a", "a1");
+    long oldVersion = mCache.getVersion("a");
+    mCache.remove("a");
+    set(mCache, "a", "a2");
+    assertThat(mCache.getVersion("a")).isNotEqualTo(oldVersion);
+    assertThat(mCache.editIfVersion("a", oldVersion).isPresent()).isFalse();
+    long removedVersion = mCache.getVersion("a");
+    mCache.remove("a");
+    mCache.close();
+    mCache = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    set(mCache, "a", "a3");
+    assertThat(mCache.getVersion("a")).isGreaterThan(removedVersion);
+    assertThat(mCache.editIfVersion("a", removedVersion).isPresent()).isFalse();
+  }
+
+  @Test
+  public void concurrentEditorsLastCommitWins() throws Exception {
+    EditorOutputStream first = mCache.editConcurrently("a").get();
+    EditorOutputStream second = mCache.editConcurrently("a").get();
+    writeToOutputStream(first, "first");
+    writeToOutputStream(second, "second");
+    assertThat(second.commit()).isTrue();
+    assertThat(first.commit()).isTrue();
+    assertValue(mCache, "a", "first");
+    assertThat(mCache.getVersion("a")).isEqualTo(2);
+    assertNoConcurrentEditFiles();
+  }
+
+  @Test
+  public void concurrentEditIsDiscardedDuringEdit() throws Exception {
+    EditorOutputStream concurrent = mCache.editConcurrently("a").get();
+    EditorOutputStream out = mCache.edit("a").get();
+    writeToOutputStream(concurrent, "concurrent");
+    assertThat(concurrent.commit()).isFalse();
+    writeToOutputStream(out, "edit");
+    out.commit();
+    assertValue(mCache, "a", "edit");
+    assertNoConcurrentEditFiles();
+  }
+
+  @Test
+  public void writeBehindPutIsReadableRightAway() throws Exception {
+    mCache.enableWriteBehind(1024, 1, true);
+    assertThat(mCache.put("a", "abc".getBytes())).isTrue();
+    assertThat(mCache.has("a")).isTrue();
+    assertThat(new String(mCache.getBytes("a").get())).isEqualTo("abc");
+    assertValue(mCache, "a", "abc");
+    assertThat(mCache.put("b", "def".getBytes())).isTrue();
+    mCache.remove("b");
+    assertThat(mCache.has("b")).isFalse();
+    assertThat(mCache.put("c", "ghi".getBytes())).isTrue();
+    mCache.close();
+    IgDiskCache cache2 = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    assertValue(cache2, "c", "ghi");
+    assertAbsent(cache2, "b");
+    assertNoConcurrentEditFiles();
+  }
+
+  @Test
+  public void writeBehindPutReplacesTombstone() throws Exception {
+    mCache.putTombstone("a", 60 * 1000);
+    mCache.enableWriteBehind(1024, 1, true);
+    assertThat(mCache.put("a", "abc".getBytes())).isTrue();
+    assertThat(mCache.isKnownAbsent("a")).isFalse();
+    assertValue(mCache, "a", "abc");
+    mCache.disableWriteBehind();
+    assertThat(mCache.isKnownAbsent("a")).isFalse();
+    assertValue(mCache, "a", "abc");
+  }
+
+  @Test
+  public void putDuringDisableWriteBehindIsNotOverwritten() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      final String key = "k" + i;
+      mCache.enableWriteBehind(1024, 1, true);
+      assertThat(mCache.put(key, "old".getBytes())).isTrue();
+      Thread disabler = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          mCache.disableWriteBehind();
+        }
+      });
+      disabler.start();
+      assertThat(mCache.put(key, "new".getBytes())).isTrue();
+      assertThat(new String(mCache.getBytes(key).get())).isEqualTo("new");
+      disabler.join();
+      assertValue(mCache, key, "new");
+      assertThat(new String(mCache.getBytes(key).get())).isEqualTo("new");
+    }
+  }
+
+  @Test
+  public void writeBehindCannotBeEnabledTwice() throws Exception {
+    mCache.enableWriteBehind(1024, 1, true);
+    try {
+      mCache.enableWriteBehind(2048, 1, true);
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected: the queue in use would be dropped with its values.
+    }
+    mCache.disableWriteBehind();
+    mCache.enableWriteBehind(2048, 1, true);
+  }
+
+  @Test
+  public void writeBehindDropsWhenFull() throws Exception {
+    mCache.enableWriteBehind(10, 1, false);
+    int putCount = 0;
+    // The worker can't commit while the cache is locked, the first value stays queued and there
+    // is no room left for the others.
+    synchronized (mCache) {
+      for (int i = 0; i < 20; i++) {
+        if (mCache.put("k" + i, "abcdef".getBytes())) {
+          putCount++;
+        }
+      }
+    }
+    assertThat(putCount).isEqualTo(1);
+    assertThat(mCache.getDroppedWriteCount()).isEqualTo(19);
+    assertThat(putCount + mCache.getDroppedWriteCount()).isEqualTo(20);
+    mCache.disableWriteBehind();
+    assertThat(mCache.count()).isEqualTo(putCount);
+  }
+
+  @Test
+  public void transactionPublishesAllEdits() throws Exception {
+    Transaction transaction = mCache.beginTransaction();
+    EditorOutputStream media = transaction.edit("media").get();
+    EditorOutputStream manifest = transaction.edit("manifest").get();
+    writeToOutputStream(media, "data");
+    assertThat(media.commit()).isTrue();
+    assertThat(mCache.has("media")).isFalse();
+    writeToOutputStream(manifest, "meta");
+    assertThat(transaction.commit()).isTrue();
+    assertValue(mCache, "media", "data");
+    assertValue(mCache, "manifest", "meta");
+    mCache.close();
+    mCache = new IgDiskCache(mCacheDir, Integer.MAX_VALUE);
+    assertValue(mCache, "media", "data");
+    assertValue(mCache, "manifest", "meta");
+  }
+
+  @Test
+  public void abortedEditAbortsTransaction() throws Exception {
+    set(mCache, "media", "old");
+    Transaction transaction = mCache.beginTransaction();
+    EditorOutputStream media = transaction.edit("media").get();
+    EditorOutputStream manifest = transaction.edit("manifest").get();
+    writeToOutputStream(media, "new");
+    writeToOutputStream(manifest, "meta");
+    assertThat(manifest.commit()).isTrue();
+    media.abort();
+    assertThat(transaction.commit()).isFalse();
+    assertValue(mCache, "media", "old");
+    assertAbsent(mCache, "manifest");
+  }
+
+  @Test
+  public void failedTransactionKeepsPreviousValues() throws Exception {
+    set(mCache, "a", "a1");
+    set(mCache, "b", "b1");
+    set(mCache, "c", "c1");
+    mCache.setMaxPackedEntrySizeInBytes(2);
+    mCache.setMaxEntrySizeInBytes(4);
+    Transaction transaction = mCache.beginTransaction();
+    EditorOutputStream a = transaction.edit("a").get();
+    EditorOutputStream c = transaction.edit("c").get();
+    EditorOutputStream b = transaction.edit("b").get();
+    writeToOutputStream(a, "a2");
+    writeToOutputStream(c, "c2c2");
+    writeToOutputStream(b, "b2 is too large");
+    assertThat(transaction.commit()).isFalse();
+    for (String key : new String[] {"a", "b", "c"}) {
+      assertThat(mCache.has(key)).isTrue();
+      assertValue(mCache, key, key + "1");
+    }
+    assertThat(mCache.size()).isEqualTo(6);
+    assertNoConcurrentEditFiles();
+  }
+
+  @Test
+  public void readRangeOfEntry() throws Exception {
+    set(mCache, "a", "abcdefghij");
+    OptionalStream<SnapshotInputStream> in = mCache.get("a", 2, 5);
+    assertThat(readFromInputStream(in.get())).isEqualTo("cdefg");
+    in.get().close();
+    in = mCache.get("a", 8, 100);
+    assertThat(readFromInputStream(in.get())).isEqualTo("ij");
+    in.get().close();
+    in = mCache.get("a", 20, 5);
+    assertThat(readFromInputStream(in.get())).isEqualTo("");
+    in.get().close();
+  }
+
+  @Test
+  public void randomAccessReadsAcrossChunks() throws Exception {
+    mCache.setChunkSizeInBytes(4);
+    set(mCache, "a", "abcdefghij");
+    OptionalStream<RandomAccessSnapshot> snapshot = mCache.getRandomAccess("a");
+    assertThat(snapshot.isPresent()).isTrue();
+    ByteBuffer buffer = ByteBuffer.allocate(6);
+    snapshot.get().readFully(buffer, 2);
+    assertThat(new String(buffer.array(), US_ASCII)).isEqualTo("cdefgh");
+    buffer.clear();
+    assertThat(snapshot.get().read(buffer, 9)).isEqualTo(1);
+    assertThat(snapshot.get().read(buffer, 10)).isEqualTo(-1);
+    snapshot.get().close();
+    assertThat(mCache.getRandomAccess("b").isPresent()).isFalse();
+  }
+
+  @Test
+  public void mapEntry() throws Exception {
+    mCache.setMaxPackedEntrySizeInBytes(10);
+    set(mCache, "a", "aaa");
+    set(mCache, "b", "bbbbbbbbbbbb");
+    assertThat(readMappedValue("a")).isEqualTo("aaa");
+    assertThat(readMappedValue("b")).isEqualTo("bbbbbbbbbbbb");
+    assertThat(mCache.map("c").isPresent()).isFalse();
+  }
+
+  @Test
+  public void removalIsDeferredUntilMappingIsClosed() throws Exception {
+    set(mCache, "a", "aaa");
+    OptionalStream<MappedSnapshot> mapped = mCache.map("a");
+    mCache.remove("a");
+    assertThat(mCache.has("a")).isFalse();
+    assertThat(getCleanFile("a")).exists();
+    mapped.get().close();
+    assertThat(getCleanFile("a")).doesNotExist();
+  }
+
+  @Test
+  public void transferEntryToChannel() throws Exception {
+    mCache.setChunkSizeInBytes(4);
+    set(mCache, "a", "abcdefghij");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    WritableByteChannel channel = Channels.newChannel(out);
+    assertThat(mCache.transferTo("a", channel)).isEqualTo(10);
+    assertThat(mCache.transferTo("a", 3, 4, channel)).isEqualTo(4);
+    assertThat(new String(out.toByteArray(), US_ASCII)).isEqualTo("abcdefghijdefg");
+    assertThat(mCache.transferTo("b", channel)).isEqualTo(-1);
+  }
+
+  @Test
+  public void openFilesAreInvalidatedOnCommitAndRemove() throws Exception {
+    mCache.setMaxOpenFiles(2);
+    set(mCache, "a", "aaa");
+    set(mCache, "b", "bbb");
+    set(mCache, "c", "ccc");
+    for (int i = 0; i < 3; i++) {
+      assertValueWithoutCleanFile(mCache, "a", "aaa");
+      assertValueWithoutCleanFile(mCache, "b", "bbb");
+      assertValueWithoutCleanFile(mCache, "c", "ccc");
+    }
+    set(mCache, "a", "aaaa");
+    assertValueWithoutCleanFile(mCache, "a", "aaaa");
+    mCache.remove("c");
+    assertAbsent(mCache, "c");
+    assertThat(getCleanFile("c")).doesNotExist();
+  }
+
   @Test
   public void createCacheWithNullDirectory() throws Exception {
     mCache = new IgDiskCache(null);
@@ -678,6 +1551,40 @@ public final class IgDiskCacheTest extends RobolectricBaseTest {
     }
   }
 
+  private String readMappedValue(String key) {
+    OptionalStream<MappedSnapshot> mapped = mCache.map(key);
+    assertThat(mapped.isPresent()).isTrue();
+    byte[] data = new byte[(int) mapped.get().getLengthInBytes()];
+    mapped.get().getBuffer().duplicate().get(data);
+    mapped.get().close();
+    return new String(data, US_ASCII);
+  }
+
+  private void assertNoConcurrentEditFiles() {
+    for (String name : mCacheDir.list()) {
+      assertThat(name.indexOf(Entry.CONCURRENT_EDIT_SEPARATOR)).isEqualTo(-1);
+    }
+  }
+
+  private int countChunkFiles() {
+    int count = 0;
+    for (String name : mCacheDir.list()) {
+      if (name.endsWith(ChunkStore.CHUNK_FILE_EXTENSION)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private void assertValueWithoutCleanFile(IgDiskCache cache, String key, String value)
+          throws Exception {
+    OptionalStream<SnapshotInputStream> in = cache.get(key);
+    assertThat(in.isPresent()).isTrue();
+    assertThat(readFromInputStream(in.get())).isEqualTo(value);
+    assertThat(getCleanFile(key)).doesNotExist();
+    in.get().close();
+  }
+
   static String readFromInputStream(SnapshotInputStream in) {
     Reader reader = null;
     try {
@@ -110,6 +110,185 @@ public class JournalTest extends RobolectricBaseTest {
     assertJournalEqualsAsync("DIRTY k1");
   }
 
+  @Test
+  public void logTombstoneInJournal() throws Exception {
+    mJournal.rebuild();
+    mJournal.logTombstone("k1", 1462233600000L);
+    assertJournalEqualsAsync("TOMBSTONE k1 1462233600000");
+  }
+
+  @Test
+  public void retrieveTombstonesFromJournal() throws Exception {
+    long expiry = System.currentTimeMillis() + 60 * 1000;
+    FileWriter writer = new FileWriter(mJournalFile);
+    writer.write("CLEAN k1 12\nTOMBSTONE k1 " + expiry + "\nTOMBSTONE k2 1\n");
+    writer.close();
+    LinkedHashMap<String, Entry> entries = mJournal.retrieveEntriesFromJournal();
+    assertThat(entries.size()).isEqualTo(1);
+    assertThat(entries.get("k1").isTombstone()).isTrue();
+    assertThat(entries.get("k1").isReadable()).isFalse();
+    assertThat(entries.get("k1").getTombstoneExpiryMillis()).isEqualTo(expiry);
+  }
+
+  @Test
+  public void logPackedEntryInJournal() throws Exception {
+    mJournal.rebuild();
+    Entry entry = new Entry(mCacheDir, "k1");
+    entry.markAsPublished(12, Entry.FIRST_VERSION, 3, 4096);
+    mJournal.logCleanFileUpdate(entry);
+    assertJournalEqualsAsync("CLEAN k1 12 seg=3:4096");
+  }
+
+  @Test
+  public void retrievePackedEntriesFromJournal() throws Exception {
+    FileWriter writer = new FileWriter(mJournalFile);
+    writer.write("CLEAN k1 12 seg=3:4096\nCLEAN k2 5\n");
+    writer.close();
+    LinkedHashMap<String, Entry> entries = mJournal.retrieveEntriesFromJournal();
+    assertThat(entries.size()).isEqualTo(2);
+    assertThat(entries.get("k1").isPacked()).isTrue();
+    assertThat(entries.get("k1").getSegmentId()).isEqualTo(3);
+    assertThat(entries.get("k1").getSegmentOffset()).isEqualTo(4096);
+    assertThat(entries.get("k2").isPacked()).isFalse();
+  }
+
+  @Test
+  public void retrieveRemovedEntriesFromJournal() throws Exception {
+    FileWriter writer = new FileWriter(mJournalFile);
+    writer.write("CLEAN k1 12 seg=3:4096\nCLEAN k2 5\nREMOVE k1\n");
+    writer.close();
+    LinkedHashMap<String, Entry> entries = mJournal.retrieveEntriesFromJournal();
+    assertThat(entries.keySet()).containsOnly("k2");
+    assertThat(mJournal.getMaxSegmentId()).isEqualTo(3);
+  }
+
+  @Test
+  public void logRemoveInJournal() throws Exception {
+    mJournal.rebuild();
+    mJournal.logRemove("k1");
+    assertJournalEqualsAsync("REMOVE k1");
+  }
+
+  @Test
+  public void retrieveChunkedEntriesFromJournal() throws Exception {
+    FileWriter writer = new FileWriter(mJournalFile);
+    writer.write("CLEAN k1 8 chunks=4:aa,bb total=10\n");
+    writer.close();
+    LinkedHashMap<String, Entry> entries = mJournal.retrieveEntriesFromJournal();
+    Entry entry = entries.get("k1");
+    assertThat(entry.getChunkSizeInBytes()).isEqualTo(4);
+    assertThat(entry.getChunkHashes()).isEqualTo(new String[] {"aa", "bb"});
+    assertThat(entry.getLengthInBytes()).isEqualTo(8);
+    assertThat(entry.getCompleteLengthInBytes()).isEqualTo(10);
+  }
+
+  @Test
+  public void retrieveCompressedEntriesFromJournal() throws Exception {
+    FileWriter writer = new FileWriter(mJournalFile);
+    writer.write("CLEAN k1 12 deflated=100\n");
+    writer.write("CLEAN k2 12\n");
+    writer.close();
+    LinkedHashMap<String, Entry> entries = mJournal.retrieveEntriesFromJournal();
+    assertThat(entries.get("k1").isCompressed()).isTrue();
+    assertThat(entries.get("k1").getUncompressedLengthInBytes()).isEqualTo(100);
+    assertThat(entries.get("k2").isCompressed()).isFalse();
+  }
+
+  @Test
+  public void retrieveChecksumFromJournal() throws Exception {
+    FileWriter writer = new FileWriter(mJournalFile);
+    writer.write("CLEAN k1 2 crc=30694c07\n");
+    writer.close();
+    LinkedHashMap<String, Entry> entries = mJournal.retrieveEntriesFromJournal();
+    assertThat(entries.get("k1").getChecksum()).isEqualTo(0x30694c07L);
+  }
+
+  @Test
+  public void retrieveValueLengthsFromJournal() throws Exception {
+    FileWriter writer = new FileWriter(mJournalFile);
+    writer.write("CLEAN k1 10 values=6,4\n");
+    writer.close();
+    LinkedHashMap<String, Entry> entries = mJournal.retrieveEntriesFromJournal();
+    assertThat(entries.get("k1").getValueLengths()).isEqualTo(new long[] {6, 4});
+  }
+
+  @Test
+  public void retrieveMetadataFromJournal() throws Exception {
+    FileWriter writer = new FileWriter(mJournalFile);
+    writer.write("CLEAN k1 2 meta=0aff\n");
+    writer.close();
+    LinkedHashMap<String, Entry> entries = mJournal.retrieveEntriesFromJournal();
+    assertThat(entries.get("k1").getMetadata()).isEqualTo(new byte[] {0x0a, (byte) 0xff});
+  }
+
+  @Test
+  public void retrieveVersionFromJournal() throws Exception {
+    FileWriter writer = new FileWriter(mJournalFile);
+    writer.write("CLEAN k1 2 version=3\nCLEAN k2 2\n");
+    writer.close();
+    LinkedHashMap<String, Entry> entries = mJournal.retrieveEntriesFromJournal();
+    assertThat(entries.get("k1").getVersion()).isEqualTo(3);
+    assertThat(entries.get("k2").getVersion()).isEqualTo(Entry.FIRST_VERSION);
+  }
+
+  @Test
+  public void maxVersionIncludesRemovedEntries() throws Exception {
+    FileWriter writer = new FileWriter(mJournalFile);
+    writer.write("CLEAN k1 2 version=7\nCLEAN k2 2 version=3\nREMOVE k1\n");
+    writer.close();
+    LinkedHashMap<String, Entry> entries = mJournal.retrieveEntriesFromJournal();
+    assertThat(entries.containsKey("k1")).isFalse();
+    assertThat(mJournal.getMaxVersion()).isEqualTo(7);
+  }
+
+  @Test
+  public void rebuildKeepsLastVersionOfRemovedEntries() throws Exception {
+    IgDiskCacheTest.set(mCache, "k1", "A");
+    IgDiskCacheTest.set(mCache, "k1", "B");
+    mCache.remove("k1");
+    mJournal.rebuild();
+    assertThat(readJournalLines()).contains("VERSION 2");
+    mJournal.retrieveEntriesFromJournal();
+    assertThat(mJournal.getMaxVersion()).isEqualTo(2);
+  }
+
+  @Test
+  public void retrieveTransactionFromJournal() throws Exception {
+    FileWriter writer = new FileWriter(mJournalFile);
+    writer.write("DIRTY k1\nDIRTY k2\nTXN 2\nCLEAN k1 12\nCLEAN k2 4\n");
+    writer.close();
+    LinkedHashMap<String, Entry> entries = mJournal.retrieveEntriesFromJournal();
+    assertThat(entries.size()).isEqualTo(2);
+    assertThat(entries.get("k2").getLengthInBytes()).isEqualTo(4);
+  }
+
+  @Test
+  public void truncatedTransactionIsDropped() throws Exception {
+    FileWriter writer = new FileWriter(mJournalFile);
+    writer.write("CLEAN k0 3\nDIRTY k1\nDIRTY k2\nTXN 2\nCLEAN k1 12\n");
+    writer.close();
+    LinkedHashMap<String, Entry> entries = mJournal.retrieveEntriesFromJournal();
+    assertThat(entries.keySet()).containsOnly("k0");
+    assertJournalEquals("CLEAN k0 3", "DIRTY k1", "DIRTY k2");
+
+    // Cut in the middle of the last line, which still parses: "CLEAN k2 12" became "CLEAN k2 1".
+    writer = new FileWriter(mJournalFile);
+    writer.write("CLEAN k0 3\nDIRTY k1\nDIRTY k2\nTXN 2\nCLEAN k1 12\nCLEAN k2 1");
+    writer.close();
+    mJournal = new Journal(mCacheDir, mCache, mExecutor);
+    entries = mJournal.retrieveEntriesFromJournal();
+    assertThat(entries.keySet()).containsOnly("k0");
+    assertJournalEquals("CLEAN k0 3", "DIRTY k1", "DIRTY k2");
+  }
+
+  @Test
+  public void unknownAttributeCorruptsJournal() throws Exception {
+    FileWriter writer = new FileWriter(mJournalFile);
+    writer.write("CLEAN k1 12 foo=1\n");
+    writer.close();
+    assertThat(mJournal.retrieveEntriesFromJournal()).isNull();
+  }
+
   @Test
   public void journalShouldBeEmptyForEmptyCache() throws Exception {
     assertJournalEquals();
@@ -122,7 +301,7 @@ public class JournalTest extends RobolectricBaseTest {
     assertJournalEquals("DIRTY k1"); // DIRTY must always be flushed.
     IgDiskCacheTest.writeToOutputStream(out.get(), "AB");
     out.get().commit();
-    assertJournalEqualsAsync("DIRTY k1", "CLEAN k1 2");
+    assertJournalEqualsAsync("DIRTY k1", "CLEAN k1 2 crc=30694c07");
   }
 
 
@@ -158,7 +337,11 @@ public class JournalTest extends RobolectricBaseTest {
     OptionalStream<SnapshotInputStream> in = mCache.get("k1");
     assertThat(in.isPresent());
     in.get().close();
-    assertJournalEqualsAsync("DIRTY k1", "CLEAN k1 2", "DIRTY k2", "CLEAN k2 3");
+    assertJournalEqualsAsync(
+            "DIRTY k1",
+            "CLEAN k1 2 crc=30694c07",
+            "DIRTY k2",
+            "CLEAN k2 3 crc=9a63a3eb");
   }
 
   @Test
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2016-present, Facebook, Inc.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.instagram.igdiskcache;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class MissRatioCurveEstimatorTest {
+  private static final int ENTRY_SIZE = 8 * 1024;
+
+  @Test
+  public void cyclicAccessHitsOnlyWhenWorkingSetFits() throws Exception {
+    MissRatioCurveEstimator estimator = new MissRatioCurveEstimator();
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 10; i++) {
+        readThrough(estimator, "k" + i, round > 0);
+      }
+    }
+    // The working set is 10 entries of 8KB: every read after the first round hits at 80KB.
+    HitRateCurve curve = estimator.getHitRateCurve();
+    assertThat(curve.getReferenceCount()).isEqualTo(100);
+    assertThat(curve.getHitRate(64 * 1024)).isEqualTo(0f);
+    assertThat(curve.getHitRate(128 * 1024)).isEqualTo(0.9f);
+    long recommended = curve.getRecommendedSizeInBytes(0.9f);
+    assertThat(recommended).isGreaterThanOrEqualTo(80 * 1024);
+    assertThat(recommended).isLessThanOrEqualTo(128 * 1024);
+    assertThat(curve.getRecommendedSizeInBytes(0.95f)).isEqualTo(-1);
+  }
+
+  @Test
+  public void editAfterMissIsNotCountedTwice() throws Exception {
+    MissRatioCurveEstimator estimator = new MissRatioCurveEstimator();
+    estimator.recordGet("k1", 0, false);
+    estimator.recordEdit("k1");
+    estimator.recordEdit("k1");
+    assertThat(estimator.getHitRateCurve().getReferenceCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void samplingScalesToManyKeys() throws Exception {
+    MissRatioCurveEstimator estimator = new MissRatioCurveEstimator();
+    int keyCount = 20 * MissRatioCurveEstimator.MAX_SAMPLES;
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < keyCount; i++) {
+        readThrough(estimator, "k" + i, round > 0);
+      }
+    }
+    HitRateCurve curve = estimator.getHitRateCurve();
+    assertThat(curve.getReferenceCount()).isGreaterThan(keyCount * 2 * 3 / 4);
+    assertThat(curve.getReferenceCount()).isLessThan(keyCount * 2 * 5 / 4);
+    // Half of the references are re-reads of the whole working set.
+    assertThat(curve.getHitRate((long) ENTRY_SIZE * keyCount / 2)).isLessThan(0.1f);
+    assertThat(curve.getHitRate((long) ENTRY_SIZE * keyCount * 4)).isGreaterThan(0.4f);
+  }
+
+  @Test
+  public void reuseDistanceIsKeptWhenTimestampsAreRenumbered() throws Exception {
+    MissRatioCurveEstimator estimator = new MissRatioCurveEstimator();
+    // Far more references than timestamps, to the same 3 keys.
+    int referenceCount = 3 * 8 * MissRatioCurveEstimator.MAX_SAMPLES;
+    for (int i = 0; i < referenceCount; i++) {
+      readThrough(estimator, "k" + (i % 3), i >= 3);
+    }
+    // Every re-read has a reuse distance of the 3 entries, 24KB.
+    HitRateCurve curve = estimator.getHitRateCurve();
+    assertThat(curve.getReferenceCount()).isEqualTo(referenceCount);
+    assertThat(curve.getHitRate(16 * 1024)).isEqualTo(0f);
+    assertThat(curve.getHitRate(32 * 1024)).isGreaterThan(0.99f);
+  }
+
+  private static void readThrough(MissRatioCurveEstimator estimator, String key, boolean isHit) {
+    estimator.recordGet(key, isHit ? ENTRY_SIZE : 0, isHit);
+    if (!isHit) {
+      estimator.recordEdit(key);
+      estimator.recordSize(key, ENTRY_SIZE);
+    }
+  }
+}